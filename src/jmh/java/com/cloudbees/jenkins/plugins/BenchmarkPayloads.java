@@ -0,0 +1,88 @@
+package com.cloudbees.jenkins.plugins;
+
+/**
+ * Generates realistic hook payloads of various sizes for the benchmarks.
+ */
+final class BenchmarkPayloads {
+
+    static final String REPOSITORY = "https://bitbucket.org/benchmark/repo-0";
+
+    private BenchmarkPayloads() {
+    }
+
+    /**
+     * Number of commits of the payloads of the given size: small, medium or huge.
+     */
+    static int commits(String size) {
+        if ("small".equals(size)) {
+            return 1;
+        }
+        if ("medium".equals(size)) {
+            return 50;
+        }
+        if ("huge".equals(size)) {
+            return 5000;
+        }
+        throw new IllegalArgumentException(size);
+    }
+
+    static String webhook(int commits) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"actor\":{\"username\":\"benchmark\",\"display_name\":\"Benchmark User\",\"type\":\"user\",")
+          .append("\"links\":{\"avatar\":{\"href\":\"https://bitbucket.org/account/benchmark/avatar/32/\"}}},")
+          .append("\"repository\":{\"name\":\"repo-0\",\"full_name\":\"benchmark/repo-0\",\"scm\":\"git\",\"is_private\":true,")
+          .append("\"links\":{\"html\":{\"href\":\"").append(REPOSITORY).append("\"},")
+          .append("\"self\":{\"href\":\"https://api.bitbucket.org/2.0/repositories/benchmark/repo-0\"}}},")
+          .append("\"push\":{\"changes\":[{\"forced\":false,\"created\":false,\"closed\":false,\"truncated\":false,")
+          .append("\"old\":{\"type\":\"branch\",\"name\":\"master\",\"target\":{\"hash\":\"").append(hash(commits + 1)).append("\"}},")
+          .append("\"new\":{\"type\":\"branch\",\"name\":\"master\",\"target\":{\"hash\":\"").append(hash(0)).append("\",")
+          .append("\"message\":\"Latest commit\\n\",\"date\":\"2016-01-09T10:00:00+00:00\"}},")
+          .append("\"commits\":[");
+        for (int i = 0; i < commits; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"hash\":\"").append(hash(i)).append("\",\"type\":\"commit\",")
+              .append("\"message\":\"Commit number ").append(i).append(" with a \\\"quoted\\\" message\\n\\nAnd a body.\",")
+              .append("\"author\":{\"raw\":\"Benchmark User <benchmark@example.com>\",\"user\":{\"username\":\"benchmark\"}},")
+              .append("\"links\":{\"self\":{\"href\":\"https://api.bitbucket.org/2.0/repositories/benchmark/repo-0/commit/")
+              .append(hash(i)).append("\"},\"html\":{\"href\":\"https://bitbucket.org/benchmark/repo-0/commits/")
+              .append(hash(i)).append("\"}},\"parents\":[{\"hash\":\"").append(hash(i + 1)).append("\"}]}");
+        }
+        sb.append("]}]}}");
+        return sb.toString();
+    }
+
+    static String post(int commits, int files) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"canon_url\":\"https://bitbucket.org\",\"user\":\"benchmark\",\"commits\":[");
+        for (int i = 0; i < commits; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"author\":\"benchmark\",\"branch\":\"master\",\"files\":[");
+            for (int f = 0; f < files; f++) {
+                if (f > 0) {
+                    sb.append(',');
+                }
+                sb.append("{\"file\":\"src/main/java/module").append(f).append("/File").append(i).append(".java\",\"type\":\"modified\"}");
+            }
+            sb.append("],\"message\":\"Commit number ").append(i).append("\\n\",\"node\":\"").append(hash(i).substring(0, 12))
+              .append("\",\"parents\":[\"").append(hash(i + 1).substring(0, 12)).append("\"],")
+              .append("\"raw_author\":\"Benchmark User <benchmark@example.com>\",\"raw_node\":\"").append(hash(i))
+              .append("\",\"revision\":null,\"size\":-1,\"timestamp\":\"2016-01-09 10:00:00\",\"utctimestamp\":\"2016-01-09 09:00:00+00:00\"}");
+        }
+        sb.append("],\"repository\":{\"absolute_url\":\"/benchmark/repo-0/\",\"fork\":false,\"is_private\":true,")
+          .append("\"name\":\"repo-0\",\"owner\":\"benchmark\",\"scm\":\"git\",\"slug\":\"repo-0\",\"website\":\"\"}}");
+        return sb.toString();
+    }
+
+    static String hash(int i) {
+        String hex = Integer.toHexString(i);
+        StringBuilder sb = new StringBuilder(40);
+        while (sb.length() + hex.length() < 40) {
+            sb.append('0');
+        }
+        return sb.append(hex).toString();
+    }
+}
@@ -0,0 +1,116 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Job;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.mercurial.MercurialSCM;
+import hudson.scm.SCM;
+import hudson.triggers.Trigger;
+import hudson.triggers.TriggerDescriptor;
+import org.eclipse.jgit.transport.URIish;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Matching of a pushed repository against synthetic sets of Git and Mercurial SCM configurations by
+ * {@link BitbucketJobProbe}, on its own and for a whole {@code triggerMatchingJobs} over stubbed jobs.
+ *
+ * One configuration in a hundred points to the pushed repository, the other ones to distinct repositories.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JobMatchingBenchmark {
+
+    @Param({"1000", "10000", "50000"})
+    public int configurations;
+
+    @Param({"git", "hg"})
+    public String scm;
+
+    private final BitbucketJobProbe probe = new BitbucketJobProbe();
+    private final AtomicInteger notified = new AtomicInteger();
+    private List<SCM> scms;
+    private List<Job<?, ?>> jobs;
+    private URIish remote;
+    private Set<String> remoteKeys;
+    private BitbucketEvent event;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        remote = new URIish(BenchmarkPayloads.REPOSITORY);
+        remoteKeys = BitbucketRepositoryKey.ofRemote(remote);
+        event = new BitbucketEvent("benchmark", BenchmarkPayloads.REPOSITORY, scm, "{}");
+        scms = new ArrayList<SCM>(configurations);
+        jobs = new ArrayList<Job<?, ?>>(configurations);
+        BitBucketTrigger trigger = new BitBucketTrigger() {
+            @Override
+            public void onPost(BitbucketEvent event) {
+                notified.incrementAndGet();
+            }
+        };
+        for (int i = 0; i < configurations; i++) {
+            int repository = i % 100 == 0 ? 0 : i;
+            SCM configuration = "git".equals(scm)
+                    ? new GitSCM("git@bitbucket.org:benchmark/repo-" + repository + ".git")
+                    : mercurial("ssh://hg@bitbucket.org/benchmark/repo-" + repository);
+            scms.add(configuration);
+            jobs.add(job(configuration, trigger));
+        }
+    }
+
+    @Benchmark
+    public int match() {
+        int matches = 0;
+        for (SCM configuration : scms) {
+            if (probe.match(configuration, remoteKeys)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int triggerMatchingJobs() {
+        return probe.triggerMatchingJobs(event, remote, jobs);
+    }
+
+    private static MercurialSCM mercurial(String source) {
+        MercurialSCM hg = mock(MercurialSCM.class);
+        when(hg.getSource()).thenReturn(source);
+        return hg;
+    }
+
+    private static Job<?, ?> job(SCM configuration, BitBucketTrigger trigger) {
+        FreeStyleProject job = mock(FreeStyleProject.class);
+        Map<TriggerDescriptor, Trigger<?>> triggers = Collections.<TriggerDescriptor, Trigger<?>>singletonMap(null, trigger);
+        when(job.getTriggers()).thenReturn(triggers);
+        when(job.getSCMs()).thenReturn(Collections.singletonList(configuration));
+        when(job.getName()).thenReturn("job");
+        return job;
+    }
+}
@@ -0,0 +1,86 @@
+package com.cloudbees.jenkins.plugins;
+
+import net.sf.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of Webhook 2.0 and POST service payloads by {@link BitbucketPayloadProcessor}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PayloadParsingBenchmark {
+
+    @Param({"small", "medium", "huge"})
+    public String size;
+
+    @Param({"webhook", "post"})
+    public String format;
+
+    private String body;
+    private String userAgent;
+    private String eventKey;
+    private BitbucketPayloadProcessor processor;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        int commits = BenchmarkPayloads.commits(size);
+        if ("webhook".equals(format)) {
+            body = BenchmarkPayloads.webhook(commits);
+            userAgent = "Bitbucket-Webhooks/2.0";
+            eventKey = "repo:push";
+        } else {
+            body = BenchmarkPayloads.post(commits, 20);
+        }
+        this.blackhole = blackhole;
+        processor = new BitbucketPayloadProcessor(new BitbucketJobProbe() {
+            @Override
+            public void triggerMatchingJobs(BitbucketEvent event) {
+                PayloadParsingBenchmark.this.blackhole.consume(event);
+            }
+        });
+    }
+
+    /**
+     * Selective single pass read, as done by the hook receiver.
+     */
+    @Benchmark
+    public JSONObject read() throws IOException {
+        return BitbucketPayloadReader.read(new StringReader(body));
+    }
+
+    /**
+     * Full JSON tree, as built before the selective reader.
+     */
+    @Benchmark
+    public JSONObject fullTree() {
+        return JSONObject.fromObject(body);
+    }
+
+    /**
+     * Read and processing of the payload up to the job probe.
+     */
+    @Benchmark
+    public void process() throws IOException {
+        processor.processPayload(BitbucketPayloadReader.read(new StringReader(body)), body, userAgent, eventKey);
+    }
+}
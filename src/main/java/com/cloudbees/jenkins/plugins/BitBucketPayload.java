@@ -2,35 +2,158 @@ package com.cloudbees.jenkins.plugins;
 
 import hudson.EnvVars;
 import hudson.model.AbstractBuild;
+import hudson.model.Action;
 import hudson.model.EnvironmentContributingAction;
 import hudson.model.InvisibleAction;
+import hudson.model.Queue;
+import hudson.model.queue.FoldableAction;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Inject the payload received by BitBucket into the build through $BITBUCKET_PAYLOAD so it can be processed
+ *
+ * The payload itself is kept in the {@link BitbucketPayloadStore} and only its hash is saved with the build.
+ * It is loaded when the build environment is computed, unless the trigger skips the $BITBUCKET_PAYLOAD variable:
+ * builds can then read it from the file named by $BITBUCKET_PAYLOAD_FILE, see {@link BitBucketPayloadFile}. The
+ * commit, branch, repository and actor of the event are always exposed as $BITBUCKET_COMMIT, $BITBUCKET_BRANCH,
+ * $BITBUCKET_REPOSITORY and $BITBUCKET_ACTOR.
  * @since January 9, 2016
  * @version 1.1.5
  */
-public class BitBucketPayload extends InvisibleAction implements EnvironmentContributingAction {
-    private final @Nonnull String payload;
+public class BitBucketPayload extends InvisibleAction implements EnvironmentContributingAction, FoldableAction {
+    /**
+     * Inline payload, for builds recorded before the payload store, or when the payload could not be stored or
+     * is too large for it.
+     */
+    private @CheckForNull String payload;
+    /**
+     * Hash of the payload in the {@link BitbucketPayloadStore}.
+     */
+    private @CheckForNull String payloadHash;
+    private @CheckForNull String commit;
+    private @CheckForNull String branch;
+    private @CheckForNull String repository;
+    private @CheckForNull String actor;
+    /**
+     * Whether the payload is left out of the build environment.
+     */
+    private boolean skipPayloadEnvVar;
 
     public BitBucketPayload(@Nonnull String payload) {
-        this.payload = payload;
+        this(payload, null, false);
+    }
+
+    /**
+     * @param event event the fields exposed as dedicated variables are taken from
+     * @param skipPayloadEnvVar whether to leave $BITBUCKET_PAYLOAD out of the build environment
+     */
+    public BitBucketPayload(@Nonnull String payload, @CheckForNull BitbucketEvent event, boolean skipPayloadEnvVar) {
+        this.skipPayloadEnvVar = skipPayloadEnvVar;
+        if (event != null) {
+            this.actor = event.getUser();
+            this.repository = event.getUrl();
+            BitbucketPullRequest pullRequest = event.getPullRequest();
+            if (pullRequest != null) {
+                this.branch = pullRequest.getSourceBranch();
+                this.commit = pullRequest.getSourceCommit();
+            } else {
+                // the last updated branch, or reference when no branch was updated
+                for (BitbucketRefChange change : event.getChanges()) {
+                    if (this.branch == null || BitbucketRefChange.BRANCH.equals(change.getType())) {
+                        this.branch = change.getName();
+                        this.commit = change.getNewHash();
+                    }
+                }
+            }
+        }
+        try {
+            this.payloadHash = BitbucketPayloadStore.put(payload);
+            if (this.payloadHash == null) {
+                // over the size cap of the store
+                this.payload = payload;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to store the BitBucket payload, keeping it with the build", e);
+            this.payload = payload;
+        }
     }
 
     @Nonnull
     public String getPayload() {
-        return payload;
+        if (payload != null) {
+            return payload;
+        }
+        if (payloadHash != null) {
+            try {
+                String stored = BitbucketPayloadStore.get(payloadHash);
+                if (stored != null) {
+                    return stored;
+                }
+                LOGGER.log(Level.WARNING, "BitBucket payload {0} is no longer stored, past the retention of the payload store",
+                        payloadHash);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load BitBucket payload " + payloadHash, e);
+            }
+        }
+        return "";
+    }
+
+    /**
+     * When the job is already queued, replaces the payload of the queued item with this newer one.
+     */
+    public void foldIntoExisting(Queue.Item item, Queue.Task owner, List<Action> otherActions) {
+        BitBucketPayload existing = item.getAction(BitBucketPayload.class);
+        if (existing != null) {
+            item.getActions().remove(existing);
+        }
+        item.getActions().add(this);
+    }
+
+    @CheckForNull
+    public String getCommit() {
+        return commit;
+    }
+
+    @CheckForNull
+    public String getBranch() {
+        return branch;
+    }
+
+    @CheckForNull
+    public String getRepository() {
+        return repository;
+    }
+
+    @CheckForNull
+    public String getActor() {
+        return actor;
+    }
+
+    public boolean isSkipPayloadEnvVar() {
+        return skipPayloadEnvVar;
     }
 
     @Override
     public void buildEnvVars(AbstractBuild<?, ?> abstractBuild, EnvVars envVars) {
-        final String payload = getPayload();
-        LOGGER.log(Level.FINEST, "Injecting BITBUCKET_PAYLOAD: {0}", payload);
-        envVars.put("BITBUCKET_PAYLOAD", payload);
+        putIfNotNull(envVars, "BITBUCKET_COMMIT", commit);
+        putIfNotNull(envVars, "BITBUCKET_BRANCH", branch);
+        putIfNotNull(envVars, "BITBUCKET_REPOSITORY", repository);
+        putIfNotNull(envVars, "BITBUCKET_ACTOR", actor);
+        if (!skipPayloadEnvVar) {
+            envVars.put("BITBUCKET_PAYLOAD", getPayload());
+        }
+    }
+
+    private static void putIfNotNull(EnvVars envVars, String name, @CheckForNull String value) {
+        if (value != null) {
+            envVars.put(name, value);
+        }
     }
 
     private static final Logger LOGGER = Logger.getLogger(BitBucketPayload.class.getName());
@@ -0,0 +1,76 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Environment;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the payload of a build triggered by BitBucket to {@code bitbucket-payload.json} in the temporary directory
+ * next to its workspace, {@code <workspace>@tmp}, and exposes its path as $BITBUCKET_PAYLOAD_FILE.
+ *
+ * The file is written once per build and deleted once the build completes, after the publishers ran, so large
+ * payloads don't have to be copied in the environment of every process the build starts.
+ */
+@Extension
+public class BitBucketPayloadFile extends RunListener<Run<?, ?>> {
+
+    static final String FILE_NAME = "bitbucket-payload.json";
+
+    @Override
+    public Environment setUpEnvironment(AbstractBuild build, Launcher launcher, BuildListener listener)
+            throws IOException, InterruptedException {
+        BitBucketPayload action = build.getAction(BitBucketPayload.class);
+        FilePath workspace = build.getWorkspace();
+        if (action == null || workspace == null || workspace.getParent() == null) {
+            return null;
+        }
+        String payload = action.getPayload();
+        if (payload.length() == 0) {
+            return null;
+        }
+        final FilePath file = getFile(workspace);
+        file.getParent().mkdirs();
+        file.write(payload, "UTF-8");
+        return new Environment() {
+            @Override
+            public void buildEnvVars(Map<String, String> env) {
+                env.put("BITBUCKET_PAYLOAD_FILE", file.getRemote());
+            }
+        };
+    }
+
+    @Override
+    public void onCompleted(Run<?, ?> run, TaskListener listener) {
+        if (!(run instanceof AbstractBuild) || run.getAction(BitBucketPayload.class) == null) {
+            return;
+        }
+        FilePath workspace = ((AbstractBuild<?, ?>) run).getWorkspace();
+        if (workspace == null || workspace.getParent() == null) {
+            return;
+        }
+        try {
+            getFile(workspace).delete();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not delete the BitBucket payload file of " + run, e);
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.FINE, "Could not delete the BitBucket payload file of " + run, e);
+        }
+    }
+
+    private static FilePath getFile(FilePath workspace) {
+        return workspace.getParent().child(workspace.getName() + "@tmp").child(FILE_NAME);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitBucketPayloadFile.class.getName());
+}
@@ -0,0 +1,144 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.console.AnnotatedLargeText;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.jelly.XMLOutput;
+import org.kohsuke.stapler.framework.io.ByteBuffer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The polling log that triggered a build, archived compressed in the build directory by {@link BitBucketPushCause}
+ * and only decompressed when displayed.
+ *
+ * As polling logs are rotated, the log is first copied under {@code bitbucket-polling/pending/} when the build is
+ * scheduled, and moved to the build directory once the build is created. Copies left there by builds that were never
+ * created are deleted after {@code com.cloudbees.jenkins.plugins.BitBucketPollingLogAction.pendingDays} days.
+ */
+public class BitBucketPollingLogAction implements RunAction2 {
+
+    static final String FILE_NAME = "bitbucket-polling.log.gz";
+    static final String PENDING_DIR = "pending";
+    static final int PENDING_DAYS = Integer.getInteger(BitBucketPollingLogAction.class.getName() + ".pendingDays", 7);
+
+    private transient Run<?, ?> run;
+
+    public BitBucketPollingLogAction(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public Run<?, ?> getOwner() {
+        return run;
+    }
+
+    public String getIconFileName() {
+        return getLogFile().exists() ? "clipboard.png" : null;
+    }
+
+    public String getDisplayName() {
+        return "BitBucket Polling Log";
+    }
+
+    public String getUrlName() {
+        return "bitbucketPollingLog";
+    }
+
+    public File getLogFile() {
+        return new File(run.getRootDir(), FILE_NAME);
+    }
+
+    /**
+     * Compresses a polling log into the directory of a build.
+     */
+    static void archive(Run<?, ?> run, InputStream log) throws IOException {
+        compress(log, new File(run.getRootDir(), FILE_NAME));
+    }
+
+    /**
+     * Compresses a polling log under {@link #PENDING_DIR} next to it, where it is kept until the build it triggered
+     * is created, and deletes the expired copies.
+     *
+     * @return the compressed copy, to {@link #archiveCompressed(Run, File)}
+     */
+    static File keep(File log) throws IOException {
+        File dir = new File(log.getParentFile(), PENDING_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File[] copies = dir.listFiles();
+        if (copies != null) {
+            long expiry = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(PENDING_DAYS);
+            for (File copy : copies) {
+                if (copy.lastModified() < expiry) {
+                    copy.delete();
+                }
+            }
+        }
+        File copy = new File(dir, log.getName() + ".gz");
+        InputStream in = new FileInputStream(log);
+        try {
+            compress(in, copy);
+        } finally {
+            in.close();
+        }
+        return copy;
+    }
+
+    /**
+     * Moves a copy made by {@link #keep(File)} into the directory of a build.
+     */
+    static void archiveCompressed(Run<?, ?> run, File compressed) throws IOException {
+        File file = new File(run.getRootDir(), FILE_NAME);
+        if (!compressed.renameTo(file)) {
+            FileUtils.copyFile(compressed, file);
+            compressed.delete();
+        }
+    }
+
+    private static void compress(InputStream log, File file) throws IOException {
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+        try {
+            IOUtils.copy(log, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public AnnotatedLargeText<BitBucketPollingLogAction> getLogText() throws IOException {
+        ByteBuffer buffer = new ByteBuffer();
+        InputStream in = new GZIPInputStream(new FileInputStream(getLogFile()));
+        try {
+            IOUtils.copy(in, buffer);
+        } finally {
+            in.close();
+        }
+        return new AnnotatedLargeText<BitBucketPollingLogAction>(buffer, Charset.defaultCharset(), true, this);
+    }
+
+    /**
+     * Writes the annotated log to the given output.
+     */
+    public void writeLogTo(XMLOutput out) throws IOException {
+        getLogText().writeHtmlTo(0, out.asWriter());
+    }
+}
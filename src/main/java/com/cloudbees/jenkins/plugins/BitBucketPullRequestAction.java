@@ -0,0 +1,74 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.InvisibleAction;
+import hudson.model.Queue;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Exposes the pull request that triggered a build as {@code BITBUCKET_PULL_REQUEST_*}, {@code BITBUCKET_SOURCE_*}
+ * and {@code BITBUCKET_DESTINATION_*} environment variables.
+ *
+ * Builds of different pull requests, or of different commits of a pull request, are never merged in the queue.
+ */
+public class BitBucketPullRequestAction extends InvisibleAction implements EnvironmentContributingAction, Queue.QueueAction {
+
+    private final BitbucketPullRequest pullRequest;
+
+    public BitBucketPullRequestAction(@Nonnull BitbucketPullRequest pullRequest) {
+        this.pullRequest = pullRequest;
+    }
+
+    @Nonnull
+    public BitbucketPullRequest getPullRequest() {
+        return pullRequest;
+    }
+
+    @Override
+    public void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env) {
+        env.put("BITBUCKET_PULL_REQUEST_ID", pullRequest.getId());
+        put(env, "BITBUCKET_PULL_REQUEST_EVENT", pullRequest.getEventKey());
+        put(env, "BITBUCKET_PULL_REQUEST_TITLE", pullRequest.getTitle());
+        put(env, "BITBUCKET_PULL_REQUEST_URL", pullRequest.getUrl());
+        put(env, "BITBUCKET_SOURCE_REPOSITORY", pullRequest.getSourceRepository());
+        put(env, "BITBUCKET_SOURCE_BRANCH", pullRequest.getSourceBranch());
+        put(env, "BITBUCKET_SOURCE_COMMIT", pullRequest.getSourceCommit());
+        put(env, "BITBUCKET_DESTINATION_REPOSITORY", pullRequest.getDestinationRepository());
+        put(env, "BITBUCKET_DESTINATION_BRANCH", pullRequest.getDestinationBranch());
+        put(env, "BITBUCKET_DESTINATION_COMMIT", pullRequest.getDestinationCommit());
+        put(env, "BITBUCKET_MERGE_COMMIT", pullRequest.getMergeCommit());
+    }
+
+    private static void put(EnvVars env, String name, String value) {
+        if (value != null) {
+            env.put(name, value);
+        }
+    }
+
+    /**
+     * Schedules a new build unless the queued one is for the same pull request event and commits.
+     */
+    public boolean shouldSchedule(List<Action> actions) {
+        for (Action action : actions) {
+            if (action instanceof BitBucketPullRequestAction) {
+                BitbucketPullRequest other = ((BitBucketPullRequestAction) action).pullRequest;
+                if (pullRequest.getId().equals(other.getId())
+                        && pullRequest.getEventKey().equals(other.getEventKey())
+                        && equal(pullRequest.getSourceCommit(), other.getSourceCommit())
+                        && equal(pullRequest.getMergeCommit(), other.getMergeCommit())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
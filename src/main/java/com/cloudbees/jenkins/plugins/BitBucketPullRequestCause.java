@@ -0,0 +1,33 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.model.Cause;
+
+/**
+ * Cause of the builds scheduled for a pull request event.
+ */
+public class BitBucketPullRequestCause extends Cause {
+
+    private final String user;
+    private final String pullRequestId;
+    private final String eventKey;
+
+    public BitBucketPullRequestCause(String user, BitbucketPullRequest pullRequest) {
+        this.user = user;
+        this.pullRequestId = pullRequest.getId();
+        this.eventKey = pullRequest.getEventKey();
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getPullRequestId() {
+        return pullRequestId;
+    }
+
+    @Override
+    public String getShortDescription() {
+        String action = BitbucketPullRequest.FULFILLED.equals(eventKey) ? "merge" : "update";
+        return "Started by BitBucket pull request #" + pullRequestId + " " + action + " by " + (user != null ? user : "");
+    }
+}
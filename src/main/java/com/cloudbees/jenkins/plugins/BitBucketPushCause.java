@@ -1,29 +1,78 @@
 package com.cloudbees.jenkins.plugins;
 
+import hudson.model.Run;
 import hudson.triggers.SCMTrigger;
 
+import javax.annotation.CheckForNull;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
+ * Only keeps the last lines of the polling log, saved with the build. The whole log is copied compressed when the
+ * cause is created, so that it survives the rotation of the polling logs and restarts while the build is queued,
+ * then moved to the build directory when the build is created and displayed by {@link BitBucketPollingLogAction}.
+ *
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
  */
 public class BitBucketPushCause extends SCMTrigger.SCMTriggerCause {
 
+    /**
+     * Lines of the polling log kept in {@link #getSummary()}.
+     */
+    static final int SUMMARY_LINES = 3;
+    private static final int SUMMARY_BYTES = 4096;
+
     private String pushedBy;
 
+    /**
+     * Last lines of the polling log.
+     */
+    private String summary;
+
+    /**
+     * Compressed copy of the polling log waiting for the build to be created, see
+     * {@link BitBucketPollingLogAction#keep(File)}.
+     */
+    private String pendingLog;
+
+    /**
+     * Whether the polling log was archived in the build, or could not be.
+     */
+    private boolean pollingLogArchived;
+    private boolean pollingLogLost;
+
+    /**
+     * Polling log given as text, archived once the build is created.
+     */
+    private transient String pollingLogText;
+
     public BitBucketPushCause(String pusher) {
         this("", pusher);
     }
-    
+
     public BitBucketPushCause(String pollingLog, String pusher) {
-        super(pollingLog);
+        super("");
         pushedBy = pusher;
+        pollingLogText = pollingLog;
+        summary = summarize(pollingLog);
     }
 
     public BitBucketPushCause(File pollingLog, String pusher) throws IOException {
-        super(pollingLog);
+        super("");
         pushedBy = pusher;
+        summary = summarize(tail(pollingLog));
+        try {
+            pendingLog = BitBucketPollingLogAction.keep(pollingLog).getPath();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to keep the BitBucket polling log " + pollingLog, e);
+            pollingLogLost = true;
+        }
     }
 
     @Override
@@ -31,4 +80,105 @@ public class BitBucketPushCause extends SCMTrigger.SCMTriggerCause {
         String pusher = pushedBy != null ? pushedBy : "";
         return "Started by BitBucket push by " + pusher;
     }
+
+    @CheckForNull
+    public String getSummary() {
+        return summary;
+    }
+
+    /**
+     * Whether the whole polling log can be seen with the {@link BitBucketPollingLogAction} of the build.
+     */
+    public boolean isPollingLogArchived() {
+        return pollingLogArchived;
+    }
+
+    /**
+     * Whether the polling log could not be archived, only {@link #getSummary()} is left.
+     */
+    public boolean isPollingLogLost() {
+        return pollingLogLost;
+    }
+
+    /**
+     * Archives the polling log in the build instead of the {@code polling.log} written by {@link SCMTrigger}.
+     * Only the log of the first push cause of a build is kept.
+     */
+    @Override
+    public void onAddedTo(Run build) {
+        File pending = pendingLog != null ? new File(pendingLog) : null;
+        String text = pollingLogText;
+        pendingLog = null;
+        pollingLogText = null;
+        if (build.getAction(BitBucketPollingLogAction.class) != null) {
+            if (pending != null) {
+                pending.delete();
+            }
+            pollingLogArchived = true;
+            return;
+        }
+        try {
+            if (pending != null) {
+                if (!pending.isFile()) {
+                    LOGGER.log(Level.WARNING, "The BitBucket polling log of {0} is no longer available", build);
+                    pollingLogLost = true;
+                    return;
+                }
+                BitBucketPollingLogAction.archiveCompressed(build, pending);
+            } else if (text != null && text.length() > 0) {
+                BitBucketPollingLogAction.archive(build, new ByteArrayInputStream(text.getBytes(Charset.defaultCharset())));
+            } else {
+                return;
+            }
+            pollingLogArchived = true;
+            build.addAction(new BitBucketPollingLogAction(build));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to archive the BitBucket polling log of " + build, e);
+            pollingLogLost = true;
+        }
+    }
+
+    /**
+     * The end of a log file, at most {@link #SUMMARY_BYTES} bytes.
+     */
+    private static String tail(File log) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(log, "r");
+        try {
+            long start = Math.max(0, file.length() - SUMMARY_BYTES);
+            byte[] bytes = new byte[(int) (file.length() - start)];
+            file.seek(start);
+            file.readFully(bytes);
+            return new String(bytes, Charset.defaultCharset());
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * The last {@link #SUMMARY_LINES} non blank lines of a log.
+     */
+    static String summarize(@CheckForNull String log) {
+        if (log == null) {
+            return "";
+        }
+        LinkedList<String> lines = new LinkedList<String>();
+        for (String line : log.split("\r?\n")) {
+            if (line.trim().length() > 0) {
+                lines.add(line);
+                if (lines.size() > SUMMARY_LINES) {
+                    lines.removeFirst();
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(line);
+        }
+        return sb.toString();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitBucketPushCause.class.getName());
 }
@@ -2,29 +2,46 @@ package com.cloudbees.jenkins.plugins;
 
 import hudson.Extension;
 import hudson.Util;
-import hudson.console.AnnotatedLargeText;
 import hudson.model.Action;
 import hudson.model.CauseAction;
-import hudson.model.Hudson;
 import hudson.model.Item;
 import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.RevisionParameterAction;
+import hudson.plugins.mercurial.MercurialSCM;
+import hudson.scm.SCM;
 import hudson.triggers.Trigger;
 import hudson.triggers.TriggerDescriptor;
-import hudson.util.SequentialExecutionQueue;
 import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
 import jenkins.model.ParameterizedJobMixIn;
 import jenkins.triggers.SCMTriggerItem;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
 import org.apache.commons.jelly.XMLOutput;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
+import javax.annotation.CheckForNull;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.nio.charset.Charset;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,10 +51,127 @@ import java.util.logging.Logger;
  */
 public class BitBucketTrigger extends Trigger<Job<?, ?>> {
 
+    /**
+     * Seconds to wait after a push before polling, so that pushes arriving in the meantime share the same poll.
+     */
+    private int coalesceWindow;
+
+    /**
+     * Whether to decide from the commit hashes of the payload if a build is needed, instead of polling.
+     */
+    private boolean usePayloadHashes;
+
+    /**
+     * Whether to build pull requests on pull request events.
+     */
+    private boolean buildPullRequests;
+
+    /**
+     * Ant style patterns of the paths a push must change to trigger the job, all paths when empty.
+     */
+    private String includedPaths;
+
+    /**
+     * Ant style patterns of the paths whose changes alone don't trigger the job.
+     */
+    private String excludedPaths;
+
+    /**
+     * Whether builds get the payload through $BITBUCKET_PAYLOAD_FILE only, instead of $BITBUCKET_PAYLOAD too.
+     */
+    private boolean skipPayloadEnvVar;
+
+    /**
+     * Compiled {@link #includedPaths} and {@link #excludedPaths}.
+     */
+    private transient volatile BitbucketPathFilter pathFilter;
+
+    /**
+     * Pushes received since the last poll started, guarded by {@code this}.
+     */
+    private transient PendingPushes pending;
+    /**
+     * Whether a poll is waiting to start for the pending pushes, guarded by {@code this}.
+     */
+    private transient boolean pollScheduled;
+    /**
+     * Whether a poll is currently running, guarded by {@code this}.
+     */
+    private transient boolean pollRunning;
+
     @DataBoundConstructor
     public BitBucketTrigger() {
     }
 
+    public int getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    @DataBoundSetter
+    public void setCoalesceWindow(int coalesceWindow) {
+        this.coalesceWindow = Math.max(0, coalesceWindow);
+    }
+
+    public boolean isUsePayloadHashes() {
+        return usePayloadHashes;
+    }
+
+    @DataBoundSetter
+    public void setUsePayloadHashes(boolean usePayloadHashes) {
+        this.usePayloadHashes = usePayloadHashes;
+    }
+
+    public boolean isBuildPullRequests() {
+        return buildPullRequests;
+    }
+
+    @DataBoundSetter
+    public void setBuildPullRequests(boolean buildPullRequests) {
+        this.buildPullRequests = buildPullRequests;
+    }
+
+    public boolean isSkipPayloadEnvVar() {
+        return skipPayloadEnvVar;
+    }
+
+    @DataBoundSetter
+    public void setSkipPayloadEnvVar(boolean skipPayloadEnvVar) {
+        this.skipPayloadEnvVar = skipPayloadEnvVar;
+    }
+
+    public String getIncludedPaths() {
+        return includedPaths;
+    }
+
+    @DataBoundSetter
+    public void setIncludedPaths(String includedPaths) {
+        this.includedPaths = Util.fixEmptyAndTrim(includedPaths);
+        this.pathFilter = null;
+    }
+
+    public String getExcludedPaths() {
+        return excludedPaths;
+    }
+
+    @DataBoundSetter
+    public void setExcludedPaths(String excludedPaths) {
+        this.excludedPaths = Util.fixEmptyAndTrim(excludedPaths);
+        this.pathFilter = null;
+    }
+
+    /**
+     * Whether a push changing the given paths may concern the job, according to its path patterns. Always true
+     * when the paths are unknown.
+     */
+    public boolean isInterestedIn(@CheckForNull Collection<String> changedPaths) {
+        BitbucketPathFilter filter = pathFilter;
+        if (filter == null) {
+            filter = new BitbucketPathFilter(includedPaths, excludedPaths);
+            pathFilter = filter;
+        }
+        return filter.matchesAny(changedPaths);
+    }
+
     /**
      * Called when a POST is made.
      */
@@ -50,21 +184,94 @@ public class BitBucketTrigger extends Trigger<Job<?, ?>> {
      * Called when a POST is made.
      */
     public void onPost(String triggeredByUser, final String payload) {
-        final String pushBy = triggeredByUser;
-        getDescriptor().queue.execute(new Runnable() {
-            private boolean runPolling() {
+        onPost(new BitbucketEvent(triggeredByUser, null, null, payload));
+    }
+
+    /**
+     * Called when a hook matching this job is received.
+     *
+     * Pushes arriving while a poll for this job is pending or running are collapsed into a single follow-up
+     * poll, which is attributed to every pusher and carries the latest payload. Pull request events schedule a
+     * build right away, without polling.
+     */
+    public void onPost(BitbucketEvent event) {
+        long matched = System.currentTimeMillis();
+        if (event.getPullRequest() != null) {
+            if (buildPullRequests) {
+                scheduleBuild(event, event.getPullRequest(), matched);
+            }
+            return;
+        }
+        synchronized (this) {
+            if (pending == null) {
+                pending = new PendingPushes();
+            }
+            pending.add(event, matched);
+            if (pollScheduled) {
+                LOGGER.log(Level.FINE, "Coalescing push by {0} into the pending poll of {1}", new Object[]{event.getUser(), job.getName()});
+                event.getTrace().status(job.getFullName(), BitbucketEventTrace.COALESCED);
+                return;
+            }
+            pollScheduled = true;
+            event.getTrace().status(job.getFullName(), BitbucketEventTrace.POLL_QUEUED);
+            if (pollRunning) {
+                LOGGER.log(Level.FINE, "Deferring push by {0} until the running poll of {1} completes", new Object[]{event.getUser(), job.getName()});
+                return;
+            }
+        }
+        schedulePoll();
+    }
+
+    private void schedulePoll() {
+        final Runnable poll = new Runnable() {
+            /**
+             * Commit to build when the decision was taken from the payload hashes of a single branch.
+             */
+            private String revision;
+            /**
+             * Log of this poll.
+             */
+            private File logFile;
+            private long pollStarted = -1;
+            private long pollFinished = -1;
+
+            private boolean runPolling(PendingPushes pushes) {
                 try {
-                    StreamTaskListener listener = new StreamTaskListener(getLogFile());
+                    BitbucketPollingLog.Entry entry = new BitbucketPollingLog(job).newEntry(pushes.eventId);
+                    logFile = entry.getFile();
+                    StreamTaskListener listener = new StreamTaskListener(entry.write());
                     try {
                         PrintStream logger = listener.getLogger();
                         long start = System.currentTimeMillis();
+                        pollStarted = start;
                         logger.println("Started on "+ DateFormat.getDateTimeInstance().format(new Date()));
-                        boolean result = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job).poll(listener).hasChanges();
-                        logger.println("Done. Took "+ Util.getTimeSpanString(System.currentTimeMillis()-start));
-                        if(result)
+                        Boolean decision = null;
+                        if (usePayloadHashes && !pushes.ambiguous) {
+                            decision = BitbucketPayloadRevisions.hasChanges(job, pushes.changes.values(), logger);
+                            if (Boolean.TRUE.equals(decision) && pushes.changes.size() == 1) {
+                                revision = pushes.changes.values().iterator().next().getNewHash();
+                            }
+                        }
+                        if (decision == null) {
+                            decision = BitbucketRemoteHeads.hasChanges(job, pushes.eventId, pushes.changes.values(), listener);
+                        }
+                        boolean result;
+                        if (decision != null) {
+                            result = decision;
+                        } else {
+                            result = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job).poll(listener).hasChanges();
+                        }
+                        pollFinished = System.currentTimeMillis();
+                        logger.println("Done. Took "+ Util.getTimeSpanString(pollFinished-start));
+                        BitbucketMetrics metrics = BitbucketMetrics.get();
+                        metrics.pollDuration.record(TimeUnit.MILLISECONDS.toNanos(pollFinished - start));
+                        if(result) {
                             logger.println("Changes found");
-                        else
+                            metrics.pollsWithChanges.incrementAndGet();
+                        } else {
                             logger.println("No changes");
+                            metrics.pollsWithoutChanges.incrementAndGet();
+                        }
                         return result;
                     } catch (Error e) {
                         e.printStackTrace(listener.error("Failed to record SCM polling"));
@@ -84,11 +291,36 @@ public class BitBucketTrigger extends Trigger<Job<?, ?>> {
             }
 
             public void run() {
-                if (runPolling()) {
+                PendingPushes pushes;
+                synchronized (BitBucketTrigger.this) {
+                    pollScheduled = false;
+                    pollRunning = true;
+                    pushes = pending;
+                    pending = null;
+                }
+                boolean followUp;
+                try {
+                    poll(pushes);
+                } finally {
+                    synchronized (BitBucketTrigger.this) {
+                        pollRunning = false;
+                        followUp = pollScheduled;
+                    }
+                }
+                if (followUp) {
+                    schedulePoll();
+                }
+            }
+
+            private void poll(PendingPushes pushes) {
+                if (!runPolling(pushes)) {
+                    pushes.status(job.getFullName(), BitbucketEventTrace.NO_CHANGES);
+                } else {
+                    String pushBy = pushes.getPushers();
                     String name = " #"+job.getNextBuildNumber();
                     BitBucketPushCause cause;
                     try {
-                        cause = new BitBucketPushCause(getLogFile(), pushBy);
+                        cause = new BitBucketPushCause(logFile, pushBy);
                     } catch (IOException e) {
                         LOGGER.log(Level.WARNING, "Failed to parse the polling log",e);
                         cause = new BitBucketPushCause(pushBy);
@@ -98,17 +330,162 @@ public class BitBucketTrigger extends Trigger<Job<?, ?>> {
                             return job;
                         }
                     };
-                    BitBucketPayload bitBucketPayload = new BitBucketPayload(payload);
-                    pJob.scheduleBuild2(5, new CauseAction(cause), bitBucketPayload);
-                    if (pJob.scheduleBuild(cause)) {
+                    List<Action> actions = new ArrayList<Action>();
+                    actions.add(new CauseAction(cause));
+                    actions.add(new BitBucketPayload(pushes.payload != null ? pushes.payload : "", pushes.last, skipPayloadEnvVar));
+                    if (revision != null) {
+                        actions.add(new RevisionParameterAction(revision));
+                    }
+                    actions.add(new BitBucketTriggerTimings(pushes.received, pushes.matched, pollStarted, pollFinished,
+                            System.currentTimeMillis()));
+                    // when the job is already queued, the cause and payload are folded into the queued item
+                    boolean queued = Jenkins.getInstance().getQueue().contains((Queue.Task) job);
+                    if (pJob.scheduleBuild2(5, actions.toArray(new Action[actions.size()])) == null) {
+                        LOGGER.warning("SCM changes detected in "+ job.getName()+" but it could not be scheduled");
+                        return;
+                    }
+                    pushes.status(job.getFullName(), BitbucketEventTrace.BUILD_SCHEDULED);
+                    if (!queued) {
                         LOGGER.info("SCM changes detected in "+ job.getName()+". Triggering "+ name);
                     } else {
                         LOGGER.info("SCM changes detected in "+ job.getName()+". Job is already in the queue");
                     }
                 }
             }
+        };
+        final String jobName = job.getFullName();
+        final String host = getRemoteHost();
+        final String repository = getRepository();
+        final boolean priority;
+        synchronized (this) {
+            priority = pending != null && BitbucketPollingExecutor.isPriority(pending.getBranches());
+        }
+        if (coalesceWindow > 0) {
+            Timer.get().schedule(new Runnable() {
+                public void run() {
+                    getDescriptor().executor.submit(jobName, host, repository, priority, poll);
+                }
+            }, coalesceWindow, TimeUnit.SECONDS);
+        } else {
+            getDescriptor().executor.submit(jobName, host, repository, priority, poll);
+        }
+    }
 
-        });
+    /**
+     * Schedules a build of a pull request, on the commit given by {@link BitbucketPullRequest#getCommitToBuild()}.
+     * Pull requests without such a commit, typically from forks, are not built: the job would otherwise build its
+     * configured branches and report them as the pull request. Only Git jobs can be given the commit to build, so
+     * the pull requests of other jobs are not built either.
+     */
+    private void scheduleBuild(BitbucketEvent event, BitbucketPullRequest pullRequest, long matched) {
+        if (!isGit()) {
+            LOGGER.log(Level.INFO, "Not building BitBucket pull request {0} in {1}, pull requests are only built by Git jobs",
+                    new Object[]{pullRequest, job.getName()});
+            event.getTrace().status(job.getFullName(), BitbucketEventTrace.NOT_GIT);
+            return;
+        }
+        String commit = pullRequest.getCommitToBuild();
+        if (commit == null) {
+            LOGGER.log(Level.INFO, "Not building BitBucket pull request {0} in {1}, its commit cannot be fetched from the job repository",
+                    new Object[]{pullRequest, job.getName()});
+            event.getTrace().status(job.getFullName(), BitbucketEventTrace.NO_COMMIT_TO_BUILD);
+            return;
+        }
+        ParameterizedJobMixIn pJob = new ParameterizedJobMixIn() {
+            @Override protected Job asJob() {
+                return job;
+            }
+        };
+        List<Action> actions = new ArrayList<Action>();
+        actions.add(new CauseAction(new BitBucketPullRequestCause(event.getUser(), pullRequest)));
+        actions.add(new BitBucketPayload(event.getPayload() != null ? event.getPayload() : "", event, skipPayloadEnvVar));
+        BitBucketPullRequestAction pullRequestAction = new BitBucketPullRequestAction(pullRequest);
+        actions.add(pullRequestAction);
+        actions.add(new RevisionParameterAction(commit));
+        actions.add(new BitBucketTriggerTimings(event.getReceivedAt(), matched, -1, -1, System.currentTimeMillis()));
+        if (pJob.scheduleBuild2(5, actions.toArray(new Action[actions.size()])) == null) {
+            if (isQueued(pullRequestAction)) {
+                LOGGER.log(Level.FINE, "BitBucket pull request {0} is already queued for {1}",
+                        new Object[]{pullRequest, job.getName()});
+                event.getTrace().status(job.getFullName(), BitbucketEventTrace.ALREADY_QUEUED);
+            } else {
+                LOGGER.warning("BitBucket pull request " + pullRequest + " could not be scheduled for " + job.getName());
+            }
+        } else {
+            event.getTrace().status(job.getFullName(), BitbucketEventTrace.BUILD_SCHEDULED);
+            LOGGER.info("BitBucket pull request " + pullRequest + ". Triggering " + job.getName() + " on " + commit);
+        }
+    }
+
+    /**
+     * Whether the job checks out a Git repository, which {@link RevisionParameterAction} applies to.
+     */
+    private boolean isGit() {
+        SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
+        if (item != null) {
+            for (SCM scm : item.getSCMs()) {
+                if (scm instanceof GitSCM) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a queued build of the job is for the same pull request event and commits, so
+     * {@link BitBucketPullRequestAction#shouldSchedule(List)} folded the new one into it.
+     */
+    private boolean isQueued(BitBucketPullRequestAction pullRequest) {
+        for (Queue.Item item : Jenkins.getInstance().getQueue().getItems()) {
+            if (item.task == job && !pullRequest.shouldSchedule(item.getActions())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Host of the first remote configured on the job, used to cap concurrent polls per host.
+     */
+    private String getRemoteHost() {
+        SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
+        if (item == null) {
+            return null;
+        }
+        for (SCM scm : item.getSCMs()) {
+            if (scm instanceof GitSCM) {
+                for (RemoteConfig remoteConfig : ((GitSCM) scm).getRepositories()) {
+                    for (URIish uri : remoteConfig.getURIs()) {
+                        return uri.getHost();
+                    }
+                }
+            } else if (scm instanceof MercurialSCM) {
+                try {
+                    return new URI(((MercurialSCM) scm).getSource()).getHost();
+                } catch (URISyntaxException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Key of the first repository of the job, polls of jobs on the same repository share their turns in the
+     * {@link BitbucketPollingExecutor}.
+     */
+    private String getRepository() {
+        SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
+        if (item != null) {
+            for (SCM scm : item.getSCMs()) {
+                Set<String> keys = BitbucketRepositoryKey.of(scm);
+                if (!keys.isEmpty()) {
+                    return Collections.min(keys);
+                }
+            }
+        }
+        return job.getFullName();
     }
 
     @Override
@@ -120,15 +497,22 @@ public class BitBucketTrigger extends Trigger<Job<?, ?>> {
      * Returns the file that records the last/current polling activity.
      */
     public File getLogFile() {
-        return new File(job.getRootDir(),"bitbucket-polling.log");
+        BitbucketPollingLog.Entry latest = getPollingLog().getLatest();
+        return latest != null ? latest.getFile() : new File(job.getRootDir(), BitbucketPollingLog.LEGACY_LOG);
     }
 
     /**
-     * Check if "bitbucket-polling.log" already exists to initialize it
+     * Check if a polling log already exists to initialize it
      */
     public boolean IsLogFileInitialized() {
-        File file = new File(job.getRootDir(),"bitbucket-polling.log");
-        return file.exists();
+        return getPollingLog().getLatest() != null;
+    }
+
+    /**
+     * Returns the history of the polling logs of the job.
+     */
+    public BitbucketPollingLog getPollingLog() {
+        return new BitbucketPollingLog(job);
     }
 
     @Override
@@ -136,6 +520,11 @@ public class BitBucketTrigger extends Trigger<Job<?, ?>> {
         return (DescriptorImpl)super.getDescriptor();
     }
 
+    /**
+     * Bytes of the latest polling log shown on the polling log page.
+     */
+    private static final long TAIL_SIZE = 64 * 1024;
+
     /**
      * Action object for {@link Project}. Used to display the polling log.
      */
@@ -156,6 +545,32 @@ public class BitBucketTrigger extends Trigger<Job<?, ?>> {
             return "BitBucketPollLog";
         }
 
+        /**
+         * Polling logs, latest first.
+         */
+        public List<BitbucketPollingLog.Entry> getEntries() {
+            return getPollingLog().getEntries();
+        }
+
+        public BitbucketPollingLog.Entry getLatest() {
+            return getPollingLog().getLatest();
+        }
+
+        /**
+         * Binds {@code BitBucketPollLog/entry/NAME} to a polling log.
+         */
+        public BitbucketPollingLog.Entry getEntry(String name) {
+            return getPollingLog().getEntry(name);
+        }
+
+        /**
+         * Offset to start displaying the latest log from, so that only its tail is sent.
+         */
+        public long getTailOffset(BitbucketPollingLog.Entry entry) {
+            return Math.max(0, entry.getSize() - TAIL_SIZE);
+        }
+
+        @Deprecated
         public String getLog() throws IOException {
             return Util.loadFile(getLogFile());
         }
@@ -164,13 +579,92 @@ public class BitBucketTrigger extends Trigger<Job<?, ?>> {
          * Writes the annotated log to the given output.
          */
         public void writeLogTo(XMLOutput out) throws IOException {
-            new AnnotatedLargeText<BitBucketWebHookPollingAction>(getLogFile(), Charset.defaultCharset(),true,this).writeHtmlTo(0,out.asWriter());
+            BitbucketPollingLog.Entry latest = getLatest();
+            if (latest != null) {
+                latest.writeLogTo(getTailOffset(latest), out);
+            }
+        }
+
+        /**
+         * Percentiles of the trigger stages of the builds of the job, see {@link BitBucketTriggerTimings}, or null
+         * if no build was triggered since Jenkins started.
+         */
+        @CheckForNull
+        public JSONObject getTriggerLatency() {
+            return BitbucketMetrics.get().triggerLatencyToJSON(job.getFullName());
+        }
+
+        public String formatMicros(long micros) {
+            return Util.getTimeSpanString(TimeUnit.MICROSECONDS.toMillis(micros));
+        }
+    }
+
+    /**
+     * Pushes collapsed into the next poll of the job.
+     */
+    private static final class PendingPushes {
+        private final Set<String> pushers = new LinkedHashSet<String>();
+        private final Map<String, BitbucketRefChange> changes = new LinkedHashMap<String, BitbucketRefChange>();
+        private String payload;
+        private String eventId;
+        private BitbucketEvent last;
+        /**
+         * When the first of the pushes was received, and matched to the job.
+         */
+        private long received = -1;
+        private long matched = -1;
+        private final List<BitbucketEventTrace> traces = new ArrayList<BitbucketEventTrace>();
+        /**
+         * Whether one of the pushes did not describe the references it updated.
+         */
+        private boolean ambiguous;
+
+        void add(BitbucketEvent event, long matchedAt) {
+            if (matched < 0) {
+                received = event.getReceivedAt();
+                matched = matchedAt;
+            }
+            pushers.add(event.getUser());
+            payload = event.getPayload();
+            eventId = event.getId();
+            last = event;
+            traces.add(event.getTrace());
+            if (event.getChanges().isEmpty()) {
+                ambiguous = true;
+            }
+            for (BitbucketRefChange change : event.getChanges()) {
+                changes.put(change.getType() + ":" + change.getName(), change);
+            }
+        }
+
+        String getPushers() {
+            return Util.join(pushers, ", ");
+        }
+
+        void status(String job, String status) {
+            for (BitbucketEventTrace trace : traces) {
+                trace.status(job, status);
+            }
+        }
+
+        List<String> getBranches() {
+            List<String> branches = new ArrayList<String>();
+            for (BitbucketRefChange change : changes.values()) {
+                if (BitbucketRefChange.BRANCH.equals(change.getType())) {
+                    branches.add(change.getName());
+                }
+            }
+            return branches;
         }
     }
 
     @Extension
     public static class DescriptorImpl extends TriggerDescriptor {
-        private transient final SequentialExecutionQueue queue = new SequentialExecutionQueue(Hudson.MasterComputer.threadPoolForRemoting);
+        private transient final BitbucketPollingExecutor executor = new BitbucketPollingExecutor();
+
+        public BitbucketPollingExecutor getExecutor() {
+            return executor;
+        }
 
         @Override
         public boolean isApplicable(Item item) {
@@ -0,0 +1,134 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Action;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * When each step between the hook request and the start of a build triggered by BitBucket happened, so a slow
+ * trigger can be attributed to the routing of the event, the wait for a poll, the poll itself or the Jenkins queue.
+ *
+ * Times are in milliseconds since the epoch, -1 for the steps a build did not go through, such as polling for pull
+ * request builds. The durations of the stages are recorded in {@link BitbucketMetrics} once the build starts.
+ */
+public class BitBucketTriggerTimings implements Action {
+
+    /**
+     * From the hook request to the trigger of the job: event queue wait, parsing and matching.
+     */
+    static final String ROUTING = "routing";
+    /**
+     * From the trigger of the job to the start of its poll: coalesce window and polling executor queue.
+     */
+    static final String POLL_WAIT = "pollWait";
+    static final String POLL = "poll";
+    /**
+     * From the end of the poll to the build being queued.
+     */
+    static final String SCHEDULE = "schedule";
+    /**
+     * Time spent in the Jenkins queue, quiet period included.
+     */
+    static final String QUEUE = "queue";
+    static final String TOTAL = "total";
+
+    static final String[] STAGES = {ROUTING, POLL_WAIT, POLL, SCHEDULE, QUEUE, TOTAL};
+
+    private final long received;
+    private final long matched;
+    private final long pollStarted;
+    private final long pollFinished;
+    private final long queued;
+    private volatile long started = -1;
+
+    public BitBucketTriggerTimings(long received, long matched, long pollStarted, long pollFinished, long queued) {
+        this.received = received;
+        this.matched = matched;
+        this.pollStarted = pollStarted;
+        this.pollFinished = pollFinished;
+        this.queued = queued;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getMatched() {
+        return matched;
+    }
+
+    public long getPollStarted() {
+        return pollStarted;
+    }
+
+    public long getPollFinished() {
+        return pollFinished;
+    }
+
+    public long getQueued() {
+        return queued;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * Durations in milliseconds of the stages known for this build, in order.
+     */
+    public Map<String, Long> getStages() {
+        Map<String, Long> stages = new LinkedHashMap<String, Long>();
+        put(stages, ROUTING, received, matched);
+        put(stages, POLL_WAIT, matched, pollStarted);
+        put(stages, POLL, pollStarted, pollFinished);
+        put(stages, SCHEDULE, pollFinished, queued);
+        put(stages, QUEUE, queued, started);
+        put(stages, TOTAL, received, started);
+        return stages;
+    }
+
+    private static void put(Map<String, Long> stages, String stage, long from, long to) {
+        if (from > 0 && to > 0) {
+            stages.put(stage, Math.max(0, to - from));
+        }
+    }
+
+    public String getTimeSpanString(long millis) {
+        return Util.getTimeSpanString(millis);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "BitBucket Trigger Timings";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    /**
+     * Records when the builds triggered by BitBucket start.
+     */
+    @Extension
+    public static class Listener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            BitBucketTriggerTimings timings = run.getAction(BitBucketTriggerTimings.class);
+            if (timings == null || timings.started > 0) {
+                return;
+            }
+            long start = run.getStartTimeInMillis();
+            timings.started = start > 0 ? start : System.currentTimeMillis();
+            BitbucketMetrics.get().recordTrigger(run.getParent().getFullName(), timings.getStages());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.Util;
+
+import javax.annotation.CheckForNull;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the hook deliveries recently accepted by {@link BitbucketHookReceiver}, so that the deliveries BitBucket
+ * retries after a timeout are not processed twice.
+ *
+ * Deliveries are identified by their {@code X-Request-UUID} header, or by a hash of their event key and body when the
+ * header is missing. At most {@code com.cloudbees.jenkins.plugins.BitbucketDeliveryCache.size} deliveries are
+ * remembered, each for {@code com.cloudbees.jenkins.plugins.BitbucketDeliveryCache.ttl} seconds.
+ */
+final class BitbucketDeliveryCache {
+
+    static final int SIZE = Integer.getInteger(BitbucketDeliveryCache.class.getName() + ".size", 10000);
+    static final long TTL = Long.getLong(BitbucketDeliveryCache.class.getName() + ".ttl", 3600);
+
+    private final int size;
+    private final long ttlNanos;
+
+    /**
+     * Time each delivery was first seen, oldest first. Guarded by {@code this}.
+     */
+    private final LinkedHashMap<String, Long> seen = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > size;
+        }
+    };
+
+    BitbucketDeliveryCache() {
+        this(SIZE, TimeUnit.SECONDS.toNanos(TTL));
+    }
+
+    BitbucketDeliveryCache(int size, long ttlNanos) {
+        this.size = size;
+        this.ttlNanos = ttlNanos;
+    }
+
+    /**
+     * The key of a delivery, from its request UUID when there is one.
+     */
+    static String keyOf(@CheckForNull String requestUuid, @CheckForNull String eventKey, byte[] body) {
+        if (requestUuid != null && requestUuid.length() > 0) {
+            return "uuid:" + requestUuid;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (eventKey != null) {
+                digest.update(eventKey.getBytes("UTF-8"));
+            }
+            digest.update((byte) 0);
+            return "sha256:" + Util.toHexString(digest.digest(body));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Records a delivery.
+     *
+     * @return whether it was already seen and has not expired yet
+     */
+    synchronized boolean isDuplicate(String key) {
+        long now = System.nanoTime();
+        for (Iterator<Long> it = seen.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() < ttlNanos) {
+                break;
+            }
+            it.remove();
+        }
+        if (seen.containsKey(key)) {
+            BitbucketMetrics.get().duplicateDeliveries.incrementAndGet();
+            return true;
+        }
+        seen.put(key, now);
+        BitbucketMetrics.get().uniqueDeliveries.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Forgets a delivery that was not accepted after all, so that its retry is processed.
+     */
+    synchronized void forget(String key) {
+        seen.remove(key);
+    }
+
+    synchronized int size() {
+        return seen.size();
+    }
+}
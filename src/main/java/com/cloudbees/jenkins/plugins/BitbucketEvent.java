@@ -0,0 +1,135 @@
+package com.cloudbees.jenkins.plugins;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A hook notification once parsed by {@link BitbucketPayloadProcessor}, as routed by {@link BitbucketJobProbe}
+ * to the matching {@link BitBucketTrigger}s.
+ */
+public class BitbucketEvent {
+
+    private final String id = UUID.randomUUID().toString();
+    private final String user;
+    private final String url;
+    private final String scm;
+    private final String payload;
+    private final List<BitbucketRefChange> changes;
+    private final BitbucketPullRequest pullRequest;
+    private final Set<String> changedPaths;
+    private final BitbucketEventTrace trace = new BitbucketEventTrace(id);
+    private volatile long receivedAt = System.currentTimeMillis();
+
+    public BitbucketEvent(String user, String url, String scm, String payload) {
+        this(user, url, scm, payload, Collections.<BitbucketRefChange>emptyList());
+    }
+
+    public BitbucketEvent(String user, String url, String scm, String payload, @Nonnull List<BitbucketRefChange> changes) {
+        this(user, url, scm, payload, changes, null);
+    }
+
+    public BitbucketEvent(String user, String url, String scm, String payload, @Nonnull List<BitbucketRefChange> changes,
+                          @CheckForNull Collection<String> changedPaths) {
+        this.user = user;
+        this.url = url;
+        this.scm = scm;
+        this.payload = payload;
+        this.changes = Collections.unmodifiableList(changes);
+        this.pullRequest = null;
+        this.changedPaths = changedPaths != null ? Collections.unmodifiableSet(new LinkedHashSet<String>(changedPaths)) : null;
+    }
+
+    public BitbucketEvent(String user, String url, String scm, String payload, @Nonnull BitbucketPullRequest pullRequest) {
+        this.user = user;
+        this.url = url;
+        this.scm = scm;
+        this.payload = payload;
+        this.changes = Collections.emptyList();
+        this.pullRequest = pullRequest;
+        this.changedPaths = null;
+    }
+
+    /**
+     * Identifies the event in logs.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * User who pushed, or acted on the pull request.
+     */
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * URL of the repository the event happened on.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * {@code git} or {@code hg}.
+     */
+    public String getScm() {
+        return scm;
+    }
+
+    /**
+     * The JSON payload as received.
+     */
+    @CheckForNull
+    public String getPayload() {
+        return payload;
+    }
+
+    /**
+     * References updated by the push, empty if the payload does not describe them.
+     */
+    @Nonnull
+    public List<BitbucketRefChange> getChanges() {
+        return changes;
+    }
+
+    /**
+     * The pull request of a pull request event, null for pushes.
+     */
+    @CheckForNull
+    public BitbucketPullRequest getPullRequest() {
+        return pullRequest;
+    }
+
+    /**
+     * Paths changed by the push, or null if the payload does not list them.
+     */
+    @CheckForNull
+    public Set<String> getChangedPaths() {
+        return changedPaths;
+    }
+
+    /**
+     * When the hook request of the event was received, in milliseconds since the epoch.
+     */
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    void setReceivedAt(long receivedAt) {
+        this.receivedAt = receivedAt;
+    }
+
+    /**
+     * How the event is routed.
+     */
+    BitbucketEventTrace getTrace() {
+        return trace;
+    }
+}
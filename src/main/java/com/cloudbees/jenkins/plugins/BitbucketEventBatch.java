@@ -0,0 +1,283 @@
+package com.cloudbees.jenkins.plugins;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.eclipse.jgit.transport.URIish;
+
+import javax.annotation.CheckForNull;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A batch of hook events replayed through {@code bitbucket-hook/batch}, one JSON document per line:
+ *
+ * <pre>{"headers": {"User-Agent": "Bitbucket-Webhooks/2.0", "X-Event-Key": "repo:push"}, "body": {...}}</pre>
+ *
+ * Lines are read one at a time, in a single pass keeping only the fields needed to match jobs besides the payload
+ * itself. Deliveries already received, according to their {@code X-Request-UUID} header or else to their event key
+ * and body, are reported as duplicates and not processed again, see {@link BitbucketDeliveryCache}.
+ * Lines are expected in the order the events happened: once the whole batch is read, only the newest change of each
+ * reference of a repository is kept, and events left without any change are superseded. An event that does not
+ * tell which references moved supersedes all the older pushes of its repository. Only the newest event of each pull
+ * request is kept.
+ *
+ * At most {@code com.cloudbees.jenkins.plugins.BitbucketEventBatch.maxEvents} lines are read, the following ones
+ * are rejected.
+ */
+final class BitbucketEventBatch {
+
+    static final int MAX_EVENTS = Integer.getInteger(BitbucketEventBatch.class.getName() + ".maxEvents", 1000);
+
+    static final String ACCEPTED = "accepted";
+    static final String SUPERSEDED = "superseded";
+    static final String IGNORED = "ignored";
+    static final String DUPLICATE = "duplicate";
+    static final String INVALID = "invalid";
+    static final String REJECTED = "rejected";
+
+    private final BitbucketPayloadProcessor processor;
+    private final BitbucketDeliveryCache deliveries;
+    private final int maxEvents;
+    private final List<Item> items = new ArrayList<Item>();
+
+    BitbucketEventBatch(BitbucketPayloadProcessor processor, BitbucketDeliveryCache deliveries) {
+        this(processor, deliveries, MAX_EVENTS);
+    }
+
+    BitbucketEventBatch(BitbucketPayloadProcessor processor, BitbucketDeliveryCache deliveries, int maxEvents) {
+        this.processor = processor;
+        this.deliveries = deliveries;
+        this.maxEvents = maxEvents;
+    }
+
+    /**
+     * Reads the events of the batch and drops the superseded ones.
+     */
+    void read(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int number = 0;
+        while ((line = lines.readLine()) != null) {
+            number++;
+            if (line.trim().length() == 0) {
+                continue;
+            }
+            Item item = new Item(number);
+            items.add(item);
+            if (items.size() > maxEvents) {
+                item.setStatus(REJECTED, "more than " + maxEvents + " events in the batch");
+            } else {
+                readEvent(item, line);
+            }
+        }
+        reduce();
+    }
+
+    List<Item> getItems() {
+        return Collections.unmodifiableList(items);
+    }
+
+    /**
+     * Items holding an event to process.
+     */
+    List<Item> getAccepted() {
+        List<Item> accepted = new ArrayList<Item>();
+        for (Item item : items) {
+            if (ACCEPTED.equals(item.status)) {
+                accepted.add(item);
+            }
+        }
+        return accepted;
+    }
+
+    JSONObject toJSON() {
+        JSONObject counts = new JSONObject();
+        for (String status : new String[]{ACCEPTED, SUPERSEDED, IGNORED, DUPLICATE, INVALID, REJECTED}) {
+            counts.element(status, 0);
+        }
+        JSONArray events = new JSONArray();
+        for (Item item : items) {
+            counts.element(item.status, counts.getInt(item.status) + 1);
+            events.add(item.toJSON());
+        }
+        return counts.element("events", events);
+    }
+
+    private void readEvent(Item item, String line) {
+        BitbucketMetrics.get().hooksReceived.incrementAndGet();
+        try {
+            BitbucketPayloadReader.Envelope envelope = BitbucketPayloadReader.readEnvelope(new StringReader(line));
+            String userAgent = envelope.getHeader("User-Agent");
+            String eventKey = envelope.getHeader("X-Event-Key");
+            if (!processor.isSupported(userAgent, eventKey)) {
+                BitbucketMetrics.get().hooksIgnored.incrementAndGet();
+                item.setStatus(IGNORED, "unsupported event " + eventKey);
+                return;
+            }
+            String rawPayload = envelope.getRawPayload();
+            if (rawPayload == null) {
+                throw new JSONException("missing body");
+            }
+            BitbucketEvent event = processor.toEvent(envelope.getPayload(), rawPayload, userAgent, eventKey);
+            if (event == null) {
+                BitbucketMetrics.get().hooksIgnored.incrementAndGet();
+                item.setStatus(IGNORED, "not a push");
+                return;
+            }
+            String deliveryKey = BitbucketDeliveryCache.keyOf(envelope.getHeader("X-Request-UUID"), eventKey,
+                    rawPayload.getBytes("UTF-8"));
+            if (deliveries.isDuplicate(deliveryKey)) {
+                item.setStatus(DUPLICATE, "already received");
+                return;
+            }
+            item.event = event;
+            item.userAgent = userAgent;
+            item.eventKey = eventKey;
+            item.deliveryKey = deliveryKey;
+            item.setStatus(ACCEPTED, null);
+        } catch (JSONException e) {
+            BitbucketMetrics.get().hooksFailed.incrementAndGet();
+            item.setStatus(INVALID, e.getMessage());
+        } catch (IOException e) {
+            BitbucketMetrics.get().hooksFailed.incrementAndGet();
+            item.setStatus(INVALID, e.getMessage());
+        }
+    }
+
+    /**
+     * Walks the events from the newest, dropping the changes of references already seen.
+     */
+    private void reduce() {
+        Set<String> seenRefs = new HashSet<String>();
+        Set<String> seenRepositories = new HashSet<String>();
+        for (int i = items.size() - 1; i >= 0; i--) {
+            Item item = items.get(i);
+            if (item.event == null) {
+                continue;
+            }
+            BitbucketEvent event = item.event;
+            String repository = repositoryOf(event);
+            if (event.getPullRequest() != null) {
+                // only the last state of a pull request is built
+                if (!seenRefs.add(repository + " pullrequest:" + event.getPullRequest().getId())) {
+                    item.supersede();
+                }
+                continue;
+            }
+            if (seenRepositories.contains(repository)) {
+                item.supersede();
+                continue;
+            }
+            if (event.getChanges().isEmpty()) {
+                seenRepositories.add(repository);
+                continue;
+            }
+            List<BitbucketRefChange> newest = new ArrayList<BitbucketRefChange>();
+            for (BitbucketRefChange change : event.getChanges()) {
+                if (seenRefs.add(repository + " " + change.getType() + ":" + change.getName())) {
+                    newest.add(change);
+                }
+            }
+            if (newest.isEmpty()) {
+                item.supersede();
+            } else if (newest.size() < event.getChanges().size()) {
+                item.event = new BitbucketEvent(event.getUser(), event.getUrl(), event.getScm(), event.getPayload(), newest,
+                        event.getChangedPaths());
+            }
+        }
+    }
+
+    private static String repositoryOf(BitbucketEvent event) {
+        try {
+            return event.getScm() + " " + BitbucketRepositoryKey.git(new URIish(event.getUrl()));
+        } catch (URISyntaxException e) {
+            return event.getScm() + " " + event.getUrl();
+        }
+    }
+
+    /**
+     * The outcome of one line of the batch.
+     */
+    static final class Item {
+        private final int line;
+        private String status;
+        private String detail;
+        private BitbucketEvent event;
+        private String userAgent;
+        private String eventKey;
+        private String deliveryKey;
+
+        Item(int line) {
+            this.line = line;
+        }
+
+        int getLine() {
+            return line;
+        }
+
+        String getStatus() {
+            return status;
+        }
+
+        @CheckForNull
+        BitbucketEvent getEvent() {
+            return event;
+        }
+
+        /**
+         * The hook request of the event, to record in the {@link BitbucketEventJournal}.
+         */
+        @CheckForNull
+        BitbucketHookDelivery toDelivery() throws UnsupportedEncodingException {
+            if (event == null || event.getPayload() == null) {
+                return null;
+            }
+            return new BitbucketHookDelivery(userAgent, eventKey, "application/json", "UTF-8",
+                    event.getPayload().getBytes("UTF-8"));
+        }
+
+        /**
+         * Identifies the delivery in the {@link BitbucketDeliveryCache}.
+         */
+        @CheckForNull
+        String getDeliveryKey() {
+            return deliveryKey;
+        }
+
+        void setStatus(String status, @CheckForNull String detail) {
+            this.status = status;
+            this.detail = detail;
+        }
+
+        private void supersede() {
+            event = null;
+            setStatus(SUPERSEDED, "a later event of the batch updates the same references");
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject().element("line", line).element("status", status);
+            if (detail != null) {
+                json.element("detail", detail);
+            }
+            if (event != null) {
+                json.element("id", event.getId()).element("repository", event.getUrl());
+                JSONArray refs = new JSONArray();
+                for (BitbucketRefChange change : event.getChanges()) {
+                    refs.add(change.getName());
+                }
+                json.element("refs", refs);
+            }
+            return json;
+        }
+    }
+}
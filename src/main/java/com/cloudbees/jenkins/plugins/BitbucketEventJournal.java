@@ -0,0 +1,432 @@
+package com.cloudbees.jenkins.plugins;
+
+import jenkins.util.Timer;
+
+import javax.annotation.CheckForNull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the hook deliveries accepted by {@link BitbucketHookReceiver}, so that the events queued
+ * when the controller stops are processed again on the next start.
+ *
+ * A delivery is recorded before the hook is answered and marked complete once its jobs have been notified. The
+ * journal is a sequence of memory-mapped segment files of
+ * {@code com.cloudbees.jenkins.plugins.BitbucketEventJournal.segmentSize} bytes. A segment is deleted as soon as all
+ * its deliveries are complete, and the few pending deliveries of a mostly complete segment are copied to the current
+ * one so that it can be deleted too.
+ *
+ * Each record is checksummed and reading stops at the first torn record. Records are flushed to disk according to
+ * {@code com.cloudbees.jenkins.plugins.BitbucketEventJournal.fsync}: {@code always} before the hook is answered,
+ * {@code interval} every {@code com.cloudbees.jenkins.plugins.BitbucketEventJournal.fsyncInterval} milliseconds, or
+ * {@code never}, leaving it to the operating system.
+ */
+public class BitbucketEventJournal {
+
+    static final long SEGMENT_SIZE = Long.getLong(BitbucketEventJournal.class.getName() + ".segmentSize", 16L * 1024 * 1024);
+    static final String FSYNC = System.getProperty(BitbucketEventJournal.class.getName() + ".fsync", "interval");
+    static final long FSYNC_INTERVAL = Long.getLong(BitbucketEventJournal.class.getName() + ".fsyncInterval", 1000);
+
+    enum Fsync {
+        ALWAYS, INTERVAL, NEVER
+    }
+
+    private static final byte ACCEPT = 1;
+    private static final byte COMPLETE = 2;
+
+    /**
+     * Type and id of a record, before its data.
+     */
+    private static final int HEADER = 1 + 8;
+
+    /**
+     * Segments whose pending records take less than this share of their size are compacted.
+     */
+    private static final int COMPACTION_RATIO = 4;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d{8})\\.journal");
+
+    private final File dir;
+    private final long segmentSize;
+    private final Fsync fsync;
+
+    /**
+     * Guarded by {@code this}, like all the state below.
+     */
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final Map<Long, Segment> pending = new HashMap<Long, Segment>();
+    private List<Entry> recovered;
+    private Segment current;
+    private long nextId = 1;
+    private boolean dirty;
+
+    public BitbucketEventJournal(File dir) {
+        this(dir, SEGMENT_SIZE, fsyncPolicy(FSYNC));
+    }
+
+    BitbucketEventJournal(File dir, long segmentSize, Fsync fsync) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+    }
+
+    /**
+     * Returns the deliveries that were not complete when the journal was last closed, oldest first. They are
+     * returned once, and remain pending until {@link #complete(long)} is called with their id.
+     */
+    public synchronized List<Entry> recover() throws IOException {
+        open();
+        List<Entry> entries = recovered;
+        recovered = new ArrayList<Entry>();
+        return entries;
+    }
+
+    /**
+     * Records a delivery, durably if the fsync policy is {@code always}.
+     *
+     * @return the id to {@link #complete(long)} the delivery with
+     */
+    public synchronized long append(BitbucketHookDelivery delivery) throws IOException {
+        open();
+        long id = nextId++;
+        write(ACCEPT, id, encode(delivery));
+        return id;
+    }
+
+    /**
+     * Marks a delivery as processed, so it is not replayed on the next start.
+     */
+    public synchronized void complete(long id) {
+        Segment segment = pending.remove(id);
+        if (segment == null) {
+            return;
+        }
+        segment.remove(id);
+        try {
+            write(COMPLETE, id, new byte[0]);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not mark BitBucket event " + id + " as complete in the journal", e);
+        }
+        compact();
+    }
+
+    /**
+     * Forces the records written so far to disk.
+     */
+    public synchronized void flush() {
+        if (dirty && current != null) {
+            current.buffer.force();
+            dirty = false;
+        }
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    public synchronized int getSegments() {
+        return segments.size();
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    private void open() throws IOException {
+        if (current != null) {
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        recovered = new ArrayList<Entry>();
+        Map<Long, Entry> accepted = new LinkedHashMap<Long, Entry>();
+        int sequence = 0;
+        String[] names = dir.list();
+        if (names != null) {
+            Arrays.sort(names);
+            for (String name : names) {
+                Matcher m = SEGMENT_NAME.matcher(name);
+                if (m.matches()) {
+                    Segment segment = new Segment(Integer.parseInt(m.group(1)), new File(dir, name), 0);
+                    sequence = Math.max(sequence, segment.sequence);
+                    segments.add(segment);
+                    load(segment, accepted);
+                }
+            }
+        }
+        recovered.addAll(accepted.values());
+        current = new Segment(sequence + 1, new File(dir, String.format("segment-%08d.journal", sequence + 1)), segmentSize);
+        segments.add(current);
+        compact();
+        if (fsync == Fsync.INTERVAL) {
+            Timer.get().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, FSYNC_INTERVAL, FSYNC_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        if (!recovered.isEmpty()) {
+            LOGGER.log(Level.INFO, "Recovered {0} pending BitBucket events from {1}", new Object[]{recovered.size(), dir});
+        }
+    }
+
+    /**
+     * Reads the records of a segment, up to the end of the written records or the first torn one.
+     */
+    private void load(Segment segment, Map<Long, Entry> accepted) throws IOException {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < HEADER || position + 4 + length + 4 > buffer.capacity()) {
+                break;
+            }
+            byte[] record = new byte[length];
+            buffer.position(position + 4);
+            buffer.get(record);
+            if (buffer.getInt() != checksum(record)) {
+                LOGGER.log(Level.WARNING, "Torn record at {0} of {1}, ignoring the rest of the segment",
+                        new Object[]{position, segment.file});
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            byte type = in.readByte();
+            long id = in.readLong();
+            nextId = Math.max(nextId, id + 1);
+            if (type == ACCEPT) {
+                accepted.put(id, new Entry(id, decode(in)));
+                Segment previous = pending.put(id, segment);
+                if (previous != null) {
+                    // copied by a compaction that did not get to delete the older segment
+                    previous.remove(id);
+                }
+                segment.add(id, position, 4 + length + 4);
+            } else if (type == COMPLETE) {
+                accepted.remove(id);
+                Segment holder = pending.remove(id);
+                if (holder != null) {
+                    holder.remove(id);
+                }
+            }
+            position += 4 + length + 4;
+        }
+        segment.position = position;
+    }
+
+    private void write(byte type, long id, byte[] data) throws IOException {
+        int size = 4 + HEADER + data.length + 4;
+        if (current.position + size > current.buffer.capacity()) {
+            roll(size);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER + data.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeLong(id);
+        out.write(data);
+        byte[] record = bytes.toByteArray();
+        int position = current.position;
+        current.buffer.position(position + 4);
+        current.buffer.put(record);
+        current.buffer.putInt(checksum(record));
+        // the length goes last, so a record is never visible before it is complete
+        current.buffer.putInt(position, record.length);
+        current.position = position + size;
+        if (type == ACCEPT) {
+            pending.put(id, current);
+            current.add(id, position, size);
+        }
+        if (fsync == Fsync.ALWAYS) {
+            current.buffer.force();
+        } else {
+            dirty = true;
+        }
+    }
+
+    private void roll(int size) throws IOException {
+        flush();
+        int sequence = current.sequence + 1;
+        current = new Segment(sequence, new File(dir, String.format("segment-%08d.journal", sequence)), Math.max(segmentSize, size));
+        segments.add(current);
+    }
+
+    /**
+     * Moves the pending records of mostly complete segments to the current one, then deletes the oldest segments
+     * without pending records. Segments are only deleted oldest first, since a segment may hold the completion of
+     * records of older ones.
+     */
+    private void compact() {
+        boolean deletable = true;
+        for (Segment segment : new ArrayList<Segment>(segments)) {
+            if (segment == current) {
+                break;
+            }
+            if (!segment.offsets.isEmpty() && segment.liveBytes * COMPACTION_RATIO < segment.buffer.capacity()) {
+                try {
+                    for (Map.Entry<Long, Integer> record : new ArrayList<Map.Entry<Long, Integer>>(segment.offsets.entrySet())) {
+                        copy(segment, record.getKey(), record.getValue());
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not compact " + segment.file, e);
+                }
+            }
+            if (deletable && segment.offsets.isEmpty()) {
+                flush();
+                if (segment.file.delete() || !segment.file.exists()) {
+                    segments.remove(segment);
+                    continue;
+                }
+                LOGGER.log(Level.FINE, "Could not delete {0}, will try again later", segment.file);
+            }
+            deletable = false;
+        }
+    }
+
+    private void copy(Segment from, long id, int position) throws IOException {
+        int length = from.buffer.getInt(position);
+        byte[] record = new byte[length];
+        from.buffer.position(position + 4);
+        from.buffer.get(record);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        in.readLong();
+        byte[] data = new byte[length - HEADER];
+        in.readFully(data);
+        from.remove(id);
+        write(type, id, data);
+    }
+
+    private static Fsync fsyncPolicy(String value) {
+        try {
+            return Fsync.valueOf(value.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Unknown BitBucket event journal fsync policy {0}, using interval", value);
+            return Fsync.INTERVAL;
+        }
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(BitbucketHookDelivery delivery) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(delivery.getLength() + 128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, delivery.getUserAgent());
+        writeString(out, delivery.getEventKey());
+        writeString(out, delivery.getContentType());
+        writeString(out, delivery.getCharset());
+        byte[] body = delivery.getBody();
+        out.writeInt(body.length);
+        out.write(body);
+        return bytes.toByteArray();
+    }
+
+    private static BitbucketHookDelivery decode(DataInputStream in) throws IOException {
+        String userAgent = readString(in);
+        String eventKey = readString(in);
+        String contentType = readString(in);
+        String charset = readString(in);
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        return new BitbucketHookDelivery(userAgent, eventKey, contentType, charset, body);
+    }
+
+    private static void writeString(DataOutputStream out, @CheckForNull String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    @CheckForNull
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * A delivery recovered from the journal.
+     */
+    public static final class Entry {
+        private final long id;
+        private final BitbucketHookDelivery delivery;
+
+        Entry(long id, BitbucketHookDelivery delivery) {
+            this.id = id;
+            this.delivery = delivery;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public BitbucketHookDelivery getDelivery() {
+            return delivery;
+        }
+    }
+
+    private static final class Segment {
+        private final int sequence;
+        private final File file;
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Offsets of the pending records of the segment, by id.
+         */
+        private final Map<Long, Integer> offsets = new LinkedHashMap<Long, Integer>();
+        private final Map<Long, Integer> sizes = new HashMap<Long, Integer>();
+        private int liveBytes;
+        private int position;
+
+        /**
+         * Maps a segment file, creating it with the given size if it does not exist.
+         */
+        Segment(int sequence, File file, long size) throws IOException {
+            this.sequence = sequence;
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+            } finally {
+                raf.close();
+            }
+        }
+
+        void add(long id, int offset, int size) {
+            offsets.put(id, offset);
+            sizes.put(id, size);
+            liveBytes += size;
+        }
+
+        void remove(long id) {
+            if (offsets.remove(id) != null) {
+                liveBytes -= sizes.remove(id);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketEventJournal.class.getName());
+}
@@ -0,0 +1,94 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded in-memory queue between {@link BitbucketHookReceiver} and the processing of hook payloads.
+ *
+ * The receiver only enqueues the delivery and answers right away; a fixed pool of workers drains the queue.
+ * When the queue is full {@link #offer(Runnable)} fails and the receiver asks Bitbucket to retry later.
+ * Sizes can be tuned with the {@code com.cloudbees.jenkins.plugins.BitbucketEventQueue.capacity} and
+ * {@code com.cloudbees.jenkins.plugins.BitbucketEventQueue.workers} system properties.
+ */
+public class BitbucketEventQueue {
+
+    static final int CAPACITY = Integer.getInteger(BitbucketEventQueue.class.getName() + ".capacity", 1000);
+    static final int WORKERS = Integer.getInteger(BitbucketEventQueue.class.getName() + ".workers", 2);
+
+    private final int capacity;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public BitbucketEventQueue() {
+        this(CAPACITY, WORKERS);
+    }
+
+    public BitbucketEventQueue(int capacity, int workers) {
+        this.capacity = capacity;
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity),
+                new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketEventQueue"),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the task for a worker.
+     *
+     * @return false if the queue is full and the task was dropped
+     */
+    public boolean offer(final Runnable task) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Failed to process BitBucket hook", e);
+                    }
+                }
+            });
+            accepted.incrementAndGet();
+            return true;
+        } catch (RejectedExecutionException e) {
+            dropped.incrementAndGet();
+            return false;
+        }
+    }
+
+    public int getDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getActiveWorkers() {
+        return executor.getActiveCount();
+    }
+
+    public int getWorkers() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketEventQueue.class.getName());
+}
@@ -0,0 +1,171 @@
+package com.cloudbees.jenkins.plugins;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How an event was routed: the time taken to parse it and to match it against the jobs, the decision taken for each
+ * candidate job and SCM, and the polls and builds that followed.
+ *
+ * At most {@code com.cloudbees.jenkins.plugins.BitbucketEventTrace.maxJobs} jobs are recorded per event, the following
+ * ones are only counted.
+ */
+final class BitbucketEventTrace {
+
+    static final int MAX_JOBS = Integer.getInteger(BitbucketEventTrace.class.getName() + ".maxJobs", 500);
+
+    static final String TRIGGERED = "triggered";
+    static final String COALESCED = "coalesced into the pending poll";
+    static final String POLL_QUEUED = "poll queued";
+    static final String NO_CHANGES = "no changes";
+    static final String BUILD_SCHEDULED = "build scheduled";
+    static final String NO_COMMIT_TO_BUILD = "not built, the pull request commit is not in the job repository";
+    static final String NOT_GIT = "not built, pull requests are only built by Git jobs";
+    static final String ALREADY_QUEUED = "already queued for the same pull request commit";
+
+    private final String eventId;
+    private final long received = System.currentTimeMillis();
+    private String type;
+    private String repository;
+    private String user;
+    private final List<String> refs = new ArrayList<String>();
+    private String pullRequest;
+    private long parseNanos = -1;
+    private long probeNanos = -1;
+    private int candidates;
+    private int matched;
+    private int pollsQueued;
+    private int buildsScheduled;
+    private int truncated;
+    private boolean dryRun;
+    /**
+     * Decisions by job full name. Guarded by {@code this}.
+     */
+    private final Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+
+    BitbucketEventTrace(String eventId) {
+        this.eventId = eventId;
+    }
+
+    String getEventId() {
+        return eventId;
+    }
+
+    /**
+     * Records what the event is about, so the trace does not hold on the event and its payload.
+     */
+    synchronized void describe(BitbucketEvent event) {
+        repository = event.getUrl();
+        user = event.getUser();
+        refs.clear();
+        for (BitbucketRefChange change : event.getChanges()) {
+            refs.add(change.getType() + ":" + change.getName());
+        }
+        pullRequest = event.getPullRequest() != null ? event.getPullRequest().getId() : null;
+    }
+
+    synchronized void parsed(@CheckForNull String type, long nanos) {
+        this.type = type;
+        this.parseNanos = nanos;
+    }
+
+    synchronized void probed(long nanos, boolean dryRun) {
+        this.probeNanos = nanos;
+        this.dryRun = dryRun;
+    }
+
+    synchronized void candidate() {
+        candidates++;
+    }
+
+    /**
+     * Records why a job is not triggered, or with {@link #TRIGGERED} that it is.
+     */
+    synchronized void decision(String job, @CheckForNull String scm, String reason) {
+        Job entry = job(job);
+        if (entry == null) {
+            return;
+        }
+        entry.decisions.add(scm != null ? scm + ": " + reason : reason);
+        if (TRIGGERED.equals(reason)) {
+            matched++;
+            entry.status = TRIGGERED;
+        }
+    }
+
+    /**
+     * Records what happened to a triggered job, counting the polls queued and builds scheduled.
+     */
+    synchronized void status(String job, String status) {
+        if (POLL_QUEUED.equals(status)) {
+            pollsQueued++;
+        } else if (BUILD_SCHEDULED.equals(status)) {
+            buildsScheduled++;
+        }
+        Job entry = job(job);
+        if (entry != null) {
+            entry.status = status;
+        }
+    }
+
+    @CheckForNull
+    private Job job(String name) {
+        Job entry = jobs.get(name);
+        if (entry == null) {
+            if (jobs.size() >= MAX_JOBS) {
+                truncated++;
+                return null;
+            }
+            entry = new Job();
+            jobs.put(name, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @param withJobs whether to include the decisions per job
+     */
+    synchronized JSONObject toJSON(boolean withJobs) {
+        JSONObject json = new JSONObject()
+                .element("id", eventId)
+                .element("received", received)
+                .element("dryRun", dryRun);
+        if (type != null) {
+            json.element("type", type);
+        }
+        json.element("repository", repository).element("user", user).element("refs", refs);
+        if (pullRequest != null) {
+            json.element("pullRequest", pullRequest);
+        }
+        json.element("parseMicros", parseNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(parseNanos))
+                .element("probeMicros", probeNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(probeNanos))
+                .element("candidates", candidates)
+                .element("matched", matched)
+                .element("pollsQueued", pollsQueued)
+                .element("buildsScheduled", buildsScheduled);
+        if (withJobs) {
+            JSONArray jobList = new JSONArray();
+            for (Map.Entry<String, Job> e : jobs.entrySet()) {
+                JSONObject job = new JSONObject().element("job", e.getKey()).element("decisions", e.getValue().decisions);
+                if (e.getValue().status != null) {
+                    job.element("status", e.getValue().status);
+                }
+                jobList.add(job);
+            }
+            json.element("jobs", jobList).element("truncated", truncated);
+        }
+        return json;
+    }
+
+    private static final class Job {
+        private final List<String> decisions = new ArrayList<String>();
+        private String status;
+    }
+}
@@ -0,0 +1,60 @@
+package com.cloudbees.jenkins.plugins;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The {@link BitbucketEventTrace}s of the most recent events, browsable at {@code bitbucket-hook/traces}.
+ *
+ * At most {@code com.cloudbees.jenkins.plugins.BitbucketEventTraces.size} traces are kept, the oldest one being
+ * dropped when a new one is recorded.
+ */
+final class BitbucketEventTraces {
+
+    static final int SIZE = Integer.getInteger(BitbucketEventTraces.class.getName() + ".size", 200);
+
+    private static final BitbucketEventTraces INSTANCE = new BitbucketEventTraces(SIZE);
+
+    private final int size;
+    /**
+     * Newest first. Guarded by {@code this}.
+     */
+    private final LinkedList<BitbucketEventTrace> traces = new LinkedList<BitbucketEventTrace>();
+
+    BitbucketEventTraces(int size) {
+        this.size = size;
+    }
+
+    static BitbucketEventTraces get() {
+        return INSTANCE;
+    }
+
+    synchronized void add(BitbucketEventTrace trace) {
+        if (size <= 0) {
+            return;
+        }
+        traces.addFirst(trace);
+        while (traces.size() > size) {
+            traces.removeLast();
+        }
+    }
+
+    /**
+     * Recent traces, newest first.
+     */
+    synchronized List<BitbucketEventTrace> getRecent() {
+        return new ArrayList<BitbucketEventTrace>(traces);
+    }
+
+    @CheckForNull
+    synchronized BitbucketEventTrace getTrace(String eventId) {
+        for (BitbucketEventTrace trace : traces) {
+            if (trace.getEventId().equals(eventId)) {
+                return trace;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,79 @@
+package com.cloudbees.jenkins.plugins;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+/**
+ * A hook request accepted by {@link BitbucketHookReceiver}, kept with the headers needed to process it later
+ * on a {@link BitbucketEventQueue} worker once the HTTP response has been sent.
+ */
+public class BitbucketHookDelivery {
+
+    private final String userAgent;
+    private final String eventKey;
+    private final String contentType;
+    private final String charset;
+    private final byte[] body;
+    private final long receivedAt;
+
+    public BitbucketHookDelivery(@CheckForNull String userAgent, @CheckForNull String eventKey,
+                                 @CheckForNull String contentType, @CheckForNull String charset,
+                                 @Nonnull byte[] body) {
+        this.userAgent = userAgent;
+        this.eventKey = eventKey;
+        this.contentType = contentType;
+        this.charset = charset != null ? charset : "UTF-8";
+        this.body = body;
+        this.receivedAt = System.currentTimeMillis();
+    }
+
+    @CheckForNull
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    @CheckForNull
+    public String getEventKey() {
+        return eventKey;
+    }
+
+    @CheckForNull
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Nonnull
+    public String getCharset() {
+        return charset;
+    }
+
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    public int getLength() {
+        return body.length;
+    }
+
+    /**
+     * The raw request body, not to be modified.
+     */
+    byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Returns the JSON document of the request, unwrapping the form-urlencoded <pre>payload=JSON</pre> format.
+     */
+    @Nonnull
+    public String getJson() throws UnsupportedEncodingException {
+        String json = new String(body, charset);
+        if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+            json = URLDecoder.decode(json, charset);
+        }
+        if (json.startsWith("payload=")) json = json.substring(8);
+        return json;
+    }
+}
@@ -1,17 +1,33 @@
 package com.cloudbees.jenkins.plugins;
 
 import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.RootAction;
 import hudson.model.UnprotectedRootAction;
+import jenkins.model.Jenkins;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.URLDecoder;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
 
 import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 /**
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
@@ -20,8 +36,16 @@ import org.kohsuke.stapler.StaplerRequest;
 public class BitbucketHookReceiver implements UnprotectedRootAction {
 
     private final BitbucketPayloadProcessor payloadProcessor = new BitbucketPayloadProcessor();
+    private final BitbucketEventQueue events = new BitbucketEventQueue();
+    private final BitbucketDeliveryCache deliveries = new BitbucketDeliveryCache();
+    private final BitbucketEventJournal journal = new BitbucketEventJournal(new File(Jenkins.getInstance().getRootDir(), "bitbucket-journal"));
     public static final String BITBUCKET_HOOK_URL = "bitbucket-hook";
 
+    /**
+     * Seconds Bitbucket is asked to wait before retrying when the event queue is full.
+     */
+    static final int RETRY_AFTER = Integer.getInteger(BitbucketHookReceiver.class.getName() + ".retryAfter", 30);
+
     public String getIconFileName() {
         return null;
     }
@@ -37,25 +61,258 @@ public class BitbucketHookReceiver implements UnprotectedRootAction {
     /**
      * Bitbucket send <a href="https://confluence.atlassian.com/display/BITBUCKET/Write+brokers+(hooks)+for+Bitbucket">payload</a>
      * as form-urlencoded <pre>payload=JSON</pre>
+     *
+     * The payload is only recorded in the {@link BitbucketEventJournal} and queued here, then processed by a
+     * {@link BitbucketEventQueue} worker, so the hook is answered with 202 right away, or 503 with a Retry-After
+     * header when the queue is full. Deliveries retried by BitBucket are answered with 200 and dropped, see
+     * {@link BitbucketDeliveryCache}.
      * @throws IOException
      */
-    public void doIndex(StaplerRequest req) throws IOException {
-        String body = IOUtils.toString(req.getInputStream());
-        if (!body.isEmpty() && req.getRequestURI().contains("/" + BITBUCKET_HOOK_URL + "/")) {
-            String contentType = req.getContentType();
-            if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
-                body = URLDecoder.decode(body);
+    public HttpResponse doIndex(StaplerRequest req) throws IOException {
+        BitbucketMetrics metrics = BitbucketMetrics.get();
+        metrics.hooksReceived.incrementAndGet();
+        if (!payloadProcessor.isSupported(req.getHeader("user-agent"), req.getHeader("x-event-key"))) {
+            LOGGER.log(Level.FINE, "Ignoring unsupported BitBucket event {0}", req.getHeader("x-event-key"));
+            metrics.hooksIgnored.incrementAndGet();
+            return HttpResponses.ok();
+        }
+        long start = System.nanoTime();
+        byte[] body = IOUtils.toByteArray(req.getInputStream());
+        metrics.bodyRead.record(System.nanoTime() - start);
+        if (body.length > 0 && req.getRequestURI().contains("/" + BITBUCKET_HOOK_URL + "/")) {
+            String deliveryKey = BitbucketDeliveryCache.keyOf(req.getHeader("X-Request-UUID"), req.getHeader("x-event-key"), body);
+            if (deliveries.isDuplicate(deliveryKey)) {
+                LOGGER.log(Level.FINE, "Ignoring BitBucket delivery {0}, already received", deliveryKey);
+                return HttpResponses.ok();
+            }
+            BitbucketHookDelivery delivery = new BitbucketHookDelivery(req.getHeader("user-agent"),
+                    req.getHeader("x-event-key"), req.getContentType(), req.getCharacterEncoding(), body);
+            long id = record(delivery);
+            if (!enqueue(id, delivery)) {
+                journal.complete(id);
+                deliveries.forget(deliveryKey);
+                LOGGER.log(Level.WARNING, "BitBucket hook queue is full ({0} pending), asking BitBucket to retry in {1}s",
+                        new Object[]{events.getDepth(), RETRY_AFTER});
+                return retryLater(RETRY_AFTER);
+            }
+            return HttpResponses.status(HttpServletResponse.SC_ACCEPTED);
+        } else {
+            LOGGER.log(Level.WARNING, "The Jenkins job cannot be triggered. You might no have configured correctly the WebHook on BitBucket with the last slash `http://<JENKINS-URL>/bitbucket-hook/`");
+            return HttpResponses.ok();
+        }
+    }
+
+    /**
+     * Replays many hook events at once, as newline delimited JSON documents holding the headers and body of each
+     * hook request. Superseded events and deliveries already received are dropped, see {@link BitbucketEventBatch},
+     * and the other ones are recorded in the {@link BitbucketEventJournal} and queued. Answers with the outcome of
+     * each line.
+     */
+    @RequirePOST
+    public HttpResponse doBatch(StaplerRequest req) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        String charset = req.getCharacterEncoding();
+        BitbucketEventBatch batch = new BitbucketEventBatch(payloadProcessor, deliveries);
+        batch.read(new InputStreamReader(req.getInputStream(), charset != null ? charset : "UTF-8"));
+        for (BitbucketEventBatch.Item item : batch.getAccepted()) {
+            final BitbucketEvent event = item.getEvent();
+            BitbucketHookDelivery delivery = item.toDelivery();
+            final long id = delivery != null ? record(delivery) : -1;
+            boolean queued = events.offer(new Runnable() {
+                public void run() {
+                    try {
+                        payloadProcessor.processEvent(event);
+                    } finally {
+                        journal.complete(id);
+                    }
+                }
+            });
+            if (!queued) {
+                journal.complete(id);
+                deliveries.forget(item.getDeliveryKey());
+                item.setStatus(BitbucketEventBatch.REJECTED, "hook queue is full");
+            }
+        }
+        LOGGER.log(Level.INFO, "Replayed a batch of {0} BitBucket events", batch.getItems().size());
+        return json(batch.toJSON());
+    }
+
+    /**
+     * Lists the {@link BitbucketEventTraces recent event traces}, newest first, or with {@code ?id=} the full trace
+     * of one event, including the decision taken for each candidate job.
+     */
+    public HttpResponse doTraces(@QueryParameter String id) {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        if (id != null) {
+            BitbucketEventTrace trace = BitbucketEventTraces.get().getTrace(id);
+            if (trace == null) {
+                return HttpResponses.notFound();
+            }
+            return json(trace.toJSON(true));
+        }
+        JSONArray traces = new JSONArray();
+        for (BitbucketEventTrace trace : BitbucketEventTraces.get().getRecent()) {
+            traces.add(trace.toJSON(false));
+        }
+        return json(new JSONObject().element("traces", traces));
+    }
+
+    /**
+     * Routes a hook payload, sent with the headers of the original hook request, and answers with the jobs it would
+     * trigger and the time it took, without triggering anything.
+     */
+    @RequirePOST
+    public HttpResponse doDryRun(StaplerRequest req) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        String userAgent = req.getHeader("user-agent");
+        String eventKey = req.getHeader("x-event-key");
+        if (!payloadProcessor.isSupported(userAgent, eventKey)) {
+            return HttpResponses.error(HttpServletResponse.SC_BAD_REQUEST, "Unsupported BitBucket event " + eventKey);
+        }
+        BitbucketHookDelivery delivery = new BitbucketHookDelivery(userAgent, eventKey, req.getContentType(),
+                req.getCharacterEncoding(), IOUtils.toByteArray(req.getInputStream()));
+        BitbucketEventTrace trace;
+        try {
+            long start = System.nanoTime();
+            String body = delivery.getJson();
+            JSONObject payload = BitbucketPayloadReader.read(new StringReader(body));
+            trace = payloadProcessor.dryRun(payload, body, userAgent, eventKey, System.nanoTime() - start);
+        } catch (JSONException e) {
+            return HttpResponses.error(HttpServletResponse.SC_BAD_REQUEST, "Invalid BitBucket payload: " + e.getMessage());
+        }
+        if (trace == null) {
+            return HttpResponses.error(HttpServletResponse.SC_BAD_REQUEST, "The payload does not describe a BitBucket event");
+        }
+        return json(trace.toJSON(true));
+    }
+
+    /**
+     * Exposes the state of the hook event queue and the {@link BitbucketMetrics} as JSON. The breakdowns by
+     * repository and by job name internal repositories and jobs, they are only included for administrators.
+     */
+    public HttpResponse doMetrics() {
+        boolean detailed = Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER);
+        JSONObject queue = new JSONObject()
+                .element("depth", events.getDepth())
+                .element("capacity", events.getCapacity())
+                .element("workers", events.getWorkers())
+                .element("activeWorkers", events.getActiveWorkers())
+                .element("accepted", events.getAcceptedCount())
+                .element("dropped", events.getDroppedCount());
+        JSONObject polling = new JSONObject()
+                .element("pending", getPollingExecutor().getPending())
+                .element("running", getPollingExecutor().getRunning())
+                .element("concurrency", getPollingExecutor().getConcurrency());
+        if (detailed) {
+            polling.element("pendingByRepository", getPollingExecutor().getPendingByRepository());
+        }
+        JSONObject journalState = new JSONObject()
+                .element("pending", journal.getPending())
+                .element("segments", journal.getSegments());
+        return json(BitbucketMetrics.get().toJSON(detailed).element("queue", queue).element("pollingExecutor", polling)
+                .element("journal", journalState));
+    }
+
+    public BitbucketEventQueue getEvents() {
+        return events;
+    }
+
+    public BitbucketEventJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Queues again the deliveries that were pending in the journal when Jenkins stopped.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void replayJournal() {
+        BitbucketHookReceiver receiver = Jenkins.getInstance().getExtensionList(RootAction.class).get(BitbucketHookReceiver.class);
+        if (receiver == null) {
+            return;
+        }
+        try {
+            int queued = 0;
+            for (BitbucketEventJournal.Entry entry : receiver.journal.recover()) {
+                if (receiver.enqueue(entry.getId(), entry.getDelivery())) {
+                    queued++;
+                } else {
+                    LOGGER.log(Level.WARNING, "BitBucket hook queue is full, event {0} will be replayed on next start", entry.getId());
+                }
+            }
+            if (queued > 0) {
+                LOGGER.log(Level.INFO, "Replaying {0} BitBucket events from the journal", queued);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read the BitBucket event journal", e);
+        }
+    }
+
+    /**
+     * Records a delivery in the journal.
+     *
+     * @return its journal id, or -1 if it could not be recorded and will not survive a restart
+     */
+    private long record(BitbucketHookDelivery delivery) {
+        try {
+            return journal.append(delivery);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not record BitBucket event in the journal", e);
+            return -1;
+        }
+    }
+
+    private boolean enqueue(final long id, final BitbucketHookDelivery delivery) {
+        return events.offer(new Runnable() {
+            public void run() {
+                try {
+                    process(delivery);
+                } finally {
+                    journal.complete(id);
+                }
             }
-            if (body.startsWith("payload=")) body = body.substring(8);
+        });
+    }
 
+    private void process(BitbucketHookDelivery delivery) {
+        try {
+            long start = System.nanoTime();
+            String body = delivery.getJson();
             LOGGER.log(Level.FINE, "Received commit hook notification : {0}", body);
-            JSONObject payload = JSONObject.fromObject(body);
+            JSONObject payload = BitbucketPayloadReader.read(new StringReader(body));
+            long parse = System.nanoTime() - start;
+            BitbucketMetrics.get().parse.record(parse);
 
-            payloadProcessor.processPayload(payload, req);
-        } else {
-            LOGGER.log(Level.WARNING, "The Jenkins job cannot be triggered. You might no have configured correctly the WebHook on BitBucket with the last slash `http://<JENKINS-URL>/bitbucket-hook/`");
+            payloadProcessor.processPayload(payload, body, delivery.getUserAgent(), delivery.getEventKey(), parse,
+                    delivery.getReceivedAt());
+        } catch (IOException e) {
+            BitbucketMetrics.get().hooksFailed.incrementAndGet();
+            LOGGER.log(Level.WARNING, "Failed to read BitBucket hook payload", e);
+        } catch (RuntimeException e) {
+            BitbucketMetrics.get().hooksFailed.incrementAndGet();
+            throw e;
         }
+    }
+
+    private static BitbucketPollingExecutor getPollingExecutor() {
+        return Jenkins.getInstance().getDescriptorByType(BitBucketTrigger.DescriptorImpl.class).getExecutor();
+    }
 
+    static HttpResponse retryLater(final int seconds) {
+        return new HttpResponse() {
+            public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node) throws IOException, ServletException {
+                rsp.setHeader("Retry-After", String.valueOf(seconds));
+                rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "BitBucket hook queue is full");
+            }
+        };
+    }
+
+    static HttpResponse json(final JSONObject json) {
+        return new HttpResponse() {
+            public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node) throws IOException, ServletException {
+                rsp.setContentType("application/json;charset=UTF-8");
+                json.write(rsp.getWriter());
+            }
+        };
     }
 
     private static final Logger LOGGER = Logger.getLogger(BitbucketHookReceiver.class.getName());
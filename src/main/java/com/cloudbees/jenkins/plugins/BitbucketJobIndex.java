@@ -0,0 +1,220 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.scm.SCM;
+import hudson.security.ACL;
+import hudson.triggers.Trigger;
+import jenkins.model.Jenkins;
+import jenkins.model.ParameterizedJobMixIn;
+import jenkins.triggers.SCMTriggerItem;
+import jenkins.util.Timer;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.eclipse.jgit.transport.URIish;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory index from repository remote to the jobs that have a {@link BitBucketTrigger} on it, so
+ * {@link BitbucketJobProbe} does not have to walk every item of the instance on each hook.
+ *
+ * The index is built in the background once all jobs are loaded and then kept up to date from item
+ * create/rename/delete events and from job configuration saves. Until the initial build is complete
+ * {@link #isReady()} returns {@code false} and the probe falls back to a full scan.
+ *
+ * Jobs are indexed by the {@link BitbucketRepositoryKey} of their SCMs, the same keys the probe matches on, so
+ * the candidates returned for a remote are the jobs whose SCM matches it.
+ */
+@Extension
+public class BitbucketJobIndex extends ItemListener {
+
+    private final ConcurrentMap<String, Set<String>> jobsByRemote = new ConcurrentHashMap<String, Set<String>>();
+    private final ConcurrentMap<String, Set<String>> remotesByJob = new ConcurrentHashMap<String, Set<String>>();
+    private volatile boolean ready;
+
+    public static BitbucketJobIndex get() {
+        Jenkins jenkins = Jenkins.getInstance();
+        return jenkins == null ? null : jenkins.getExtensionList(ItemListener.class).get(BitbucketJobIndex.class);
+    }
+
+    /**
+     * Whether the initial build of the index has completed.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Returns the full names of the jobs with a {@link BitBucketTrigger} that may be interested in the given remote.
+     */
+    public Set<String> getCandidates(URIish remote) {
+        return getCandidates(BitbucketRepositoryKey.ofRemote(remote));
+    }
+
+    /**
+     * Returns the full names of the jobs with a {@link BitBucketTrigger} on one of the given repository keys.
+     */
+    Set<String> getCandidates(Set<String> remoteKeys) {
+        Set<String> candidates = new HashSet<String>();
+        for (String key : remoteKeys) {
+            Set<String> jobs = jobsByRemote.get(key);
+            if (jobs != null) {
+                candidates.addAll(jobs);
+            }
+        }
+        return candidates;
+    }
+
+    public int size() {
+        return remotesByJob.size();
+    }
+
+    @Override
+    public void onLoaded() {
+        Timer.get().submit(new Runnable() {
+            public void run() {
+                rebuild();
+            }
+        });
+    }
+
+    @Override
+    public void onCreated(Item item) {
+        if (item instanceof Job) {
+            reindex((Job<?, ?>) item);
+        }
+    }
+
+    @Override
+    public void onUpdated(Item item) {
+        if (item instanceof Job) {
+            reindex((Job<?, ?>) item);
+        }
+    }
+
+    @Override
+    public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+        if (item instanceof Job) {
+            remove(oldFullName);
+            reindex((Job<?, ?>) item);
+        }
+    }
+
+    @Override
+    public void onDeleted(Item item) {
+        remove(item.getFullName());
+        if (item instanceof ItemGroup) {
+            String prefix = item.getFullName() + "/";
+            for (String name : remotesByJob.keySet()) {
+                if (name.startsWith(prefix)) {
+                    remove(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the current content and indexes every job of the instance again.
+     */
+    public synchronized void rebuild() {
+        ready = false;
+        long start = System.currentTimeMillis();
+        SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+            jobsByRemote.clear();
+            remotesByJob.clear();
+            for (Job<?, ?> job : Jenkins.getInstance().getAllItems(Job.class)) {
+                reindex(job);
+            }
+            ready = true;
+            LOGGER.log(Level.INFO, "Indexed {0} BitBucket triggered jobs in {1} ms",
+                    new Object[]{remotesByJob.size(), System.currentTimeMillis() - start});
+        } finally {
+            SecurityContextHolder.setContext(old);
+        }
+    }
+
+    synchronized void reindex(Job<?, ?> job) {
+        String name = job.getFullName();
+        remove(name);
+        if (getTrigger(job) == null) {
+            return;
+        }
+        SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
+        if (item == null) {
+            return;
+        }
+        Set<String> keys = new HashSet<String>();
+        for (SCM scm : item.getSCMs()) {
+            keys.addAll(BitbucketRepositoryKey.of(scm));
+        }
+        remotesByJob.put(name, keys);
+        for (String key : keys) {
+            Set<String> jobs = jobsByRemote.get(key);
+            if (jobs == null) {
+                jobs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                jobsByRemote.put(key, jobs);
+            }
+            jobs.add(name);
+        }
+        LOGGER.log(Level.FINE, "Indexed {0} on {1}", new Object[]{name, keys});
+    }
+
+    synchronized void remove(String fullName) {
+        Set<String> keys = remotesByJob.remove(fullName);
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            Set<String> jobs = jobsByRemote.get(key);
+            if (jobs != null) {
+                jobs.remove(fullName);
+                if (jobs.isEmpty()) {
+                    jobsByRemote.remove(key);
+                }
+            }
+        }
+    }
+
+    static BitBucketTrigger getTrigger(Job<?, ?> job) {
+        if (job instanceof ParameterizedJobMixIn.ParameterizedJob) {
+            for (Trigger trigger : ((ParameterizedJobMixIn.ParameterizedJob) job).getTriggers().values()) {
+                if (trigger instanceof BitBucketTrigger) {
+                    return (BitBucketTrigger) trigger;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keeps the index in sync when a job configuration is saved, including triggers added programmatically.
+     */
+    @Extension
+    public static class SaveListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Job) {
+                BitbucketJobIndex index = get();
+                if (index != null) {
+                    index.reindex((Job<?, ?>) o);
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketJobIndex.class.getName());
+}
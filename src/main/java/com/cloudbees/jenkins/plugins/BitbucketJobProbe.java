@@ -1,29 +1,25 @@
 package com.cloudbees.jenkins.plugins;
 
 import hudson.model.Job;
+import hudson.plugins.git.BranchSpec;
 import hudson.plugins.git.GitSCM;
-import hudson.plugins.git.GitStatus;
-import hudson.plugins.mercurial.MercurialSCM;
 import hudson.scm.SCM;
 import hudson.security.ACL;
 
 import java.net.URISyntaxException;
-import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import hudson.triggers.Trigger;
 import jenkins.model.Jenkins;
 
-import jenkins.model.ParameterizedJobMixIn;
 import jenkins.triggers.SCMTriggerItem;
 import org.acegisecurity.context.SecurityContext;
 import org.acegisecurity.context.SecurityContextHolder;
 import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.URIish;
-import com.google.common.base.Objects;
 
 public class BitbucketJobProbe {
 
@@ -32,42 +28,45 @@ public class BitbucketJobProbe {
         triggerMatchingJobs(user, url, scm, "");
     }
 
+    @Deprecated
     public void triggerMatchingJobs(String user, String url, String scm, String payload) {
+        triggerMatchingJobs(new BitbucketEvent(user, url, scm, payload));
+    }
+
+    public void triggerMatchingJobs(BitbucketEvent event) {
+        route(event, false);
+    }
+
+    /**
+     * Notifies the triggers of the jobs interested in an event, recording the decisions in its
+     * {@link BitbucketEventTrace}.
+     *
+     * @param dryRun whether to only record the decisions, without notifying any trigger
+     */
+    void route(BitbucketEvent event, boolean dryRun) {
+        String url = event.getUrl();
+        String scm = event.getScm();
+        BitbucketEventTrace trace = event.getTrace();
+        trace.describe(event);
+        if (!dryRun) {
+            BitbucketEventTraces.get().add(trace);
+        }
         if ("git".equals(scm) || "hg".equals(scm)) {
+            long start = System.nanoTime();
             SecurityContext old = Jenkins.getInstance().getACL().impersonate(ACL.SYSTEM);
             try {
                 URIish remote = new URIish(url);
-                for (Job<?,?> job : Jenkins.getInstance().getAllItems(Job.class)) {
-                    BitBucketTrigger bTrigger = null;
-                    LOGGER.log(Level.FINE, "Considering candidate job {0}", job.getName());
-
-                    if (job instanceof ParameterizedJobMixIn.ParameterizedJob) {
-                        ParameterizedJobMixIn.ParameterizedJob pJob = (ParameterizedJobMixIn.ParameterizedJob) job;
-                        for (Trigger trigger : pJob.getTriggers().values()) {
-                            if (trigger instanceof BitBucketTrigger) {
-                                bTrigger = (BitBucketTrigger) trigger;
-                                break;
-                            }
-                        }
-                    }
-                    if (bTrigger != null) {
-                        LOGGER.log(Level.FINE, "Considering to poke {0}", job.getFullDisplayName());
-                        SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
-                        List<SCM> scmTriggered = new ArrayList<SCM>();
-                        for (SCM scmTrigger : item.getSCMs()) {
-                            if (match(scmTrigger, remote) && !hasBeenTriggered(scmTriggered, scmTrigger)) {
-                                LOGGER.log(Level.INFO, "Triggering BitBucket job {0}", job.getName());
-                                scmTriggered.add(scmTrigger);
-                                bTrigger.onPost(user, payload);
-                            } else LOGGER.log(Level.FINE, "{0} SCM doesn't match remote repo {1}", new Object[]{job.getName(), remote});
-                        }
-                    } else
-                        LOGGER.log(Level.FINE, "{0} hasn't BitBucketTrigger set", job.getName());
-                }
+                Set<String> remoteKeys = BitbucketRepositoryKey.ofRemote(remote);
+                triggerMatchingJobs(event, remote, remoteKeys, candidateJobs(remote, remoteKeys), dryRun);
             } catch (URISyntaxException e) {
                 LOGGER.log(Level.WARNING, "Invalid repository URL {0}", url);
             } finally {
                 SecurityContextHolder.setContext(old);
+                long duration = System.nanoTime() - start;
+                trace.probed(duration, dryRun);
+                if (!dryRun) {
+                    BitbucketMetrics.get().probe.record(duration);
+                }
             }
 
         } else {
@@ -75,6 +74,97 @@ public class BitbucketJobProbe {
         }
     }
 
+    /**
+     * Notifies the triggers of the given jobs whose SCM matches the event.
+     *
+     * @return the number of triggers notified
+     */
+    int triggerMatchingJobs(BitbucketEvent event, URIish remote, Iterable<? extends Job<?,?>> jobs) {
+        return triggerMatchingJobs(event, remote, BitbucketRepositoryKey.ofRemote(remote), jobs, false);
+    }
+
+    private int triggerMatchingJobs(BitbucketEvent event, URIish remote, Set<String> remoteKeys, Iterable<? extends Job<?,?>> jobs,
+                                    boolean dryRun) {
+        BitbucketMetrics metrics = BitbucketMetrics.get();
+        BitbucketEventTrace trace = event.getTrace();
+        int triggered = 0;
+        for (Job<?,?> job : jobs) {
+            if (!dryRun) {
+                metrics.jobsScanned.incrementAndGet();
+            }
+            trace.candidate();
+            BitBucketTrigger bTrigger = BitbucketJobIndex.getTrigger(job);
+            LOGGER.log(Level.FINE, "Considering candidate job {0}", job.getName());
+
+            if (bTrigger != null && event.getPullRequest() != null && !bTrigger.isBuildPullRequests()) {
+                LOGGER.log(Level.FINE, "{0} doesn't build pull requests", job.getName());
+                trace.decision(job.getFullName(), null, "doesn't build pull requests");
+            } else if (bTrigger != null) {
+                LOGGER.log(Level.FINE, "Considering to poke {0}", job.getFullDisplayName());
+                SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
+                List<SCM> scmTriggered = new ArrayList<SCM>();
+                for (SCM scmTrigger : item.getSCMs()) {
+                    String scmName = scmTrigger.getKey();
+                    if (!match(scmTrigger, remoteKeys)) {
+                        LOGGER.log(Level.FINE, "{0} SCM doesn't match remote repo {1}", new Object[]{job.getName(), remote});
+                        trace.decision(job.getFullName(), scmName, "repository doesn't match");
+                        continue;
+                    }
+                    if (hasBeenTriggered(scmTriggered, scmTrigger)) {
+                        trace.decision(job.getFullName(), scmName, "already triggered by an identical SCM");
+                        continue;
+                    }
+                    if (!matchesRefs(scmTrigger, event.getChanges())) {
+                        LOGGER.log(Level.FINE, "{0} SCM doesn't build any of the pushed references {1}", new Object[]{job.getName(), event.getChanges()});
+                        trace.decision(job.getFullName(), scmName, "doesn't build any of the pushed references");
+                        continue;
+                    }
+                    if (!bTrigger.isInterestedIn(event.getChangedPaths())) {
+                        LOGGER.log(Level.FINE, "{0} path filters don't match any of the changed paths", job.getName());
+                        trace.decision(job.getFullName(), scmName, "path filters don't match any of the changed paths");
+                        continue;
+                    }
+                    scmTriggered.add(scmTrigger);
+                    triggered++;
+                    trace.decision(job.getFullName(), scmName, BitbucketEventTrace.TRIGGERED);
+                    if (!dryRun) {
+                        LOGGER.log(Level.INFO, "Triggering BitBucket job {0}", job.getName());
+                        metrics.jobsMatched.incrementAndGet();
+                        bTrigger.onPost(event);
+                    }
+                }
+            } else {
+                LOGGER.log(Level.FINE, "{0} hasn't BitBucketTrigger set", job.getName());
+                trace.decision(job.getFullName(), null, "no BitBucket trigger");
+            }
+        }
+        return triggered;
+    }
+
+    /**
+     * Jobs that may be interested in the given remote: looked up in {@link BitbucketJobIndex} when it is ready,
+     * otherwise every job of the instance.
+     */
+    private Iterable<Job<?,?>> candidateJobs(URIish remote, Set<String> remoteKeys) {
+        BitbucketJobIndex index = BitbucketJobIndex.get();
+        if (index == null || !index.isReady()) {
+            LOGGER.log(Level.FINE, "Job index not ready, scanning all jobs for {0}", remote);
+            List<Job<?,?>> jobs = new ArrayList<Job<?,?>>();
+            for (Job<?,?> job : Jenkins.getInstance().getAllItems(Job.class)) {
+                jobs.add(job);
+            }
+            return jobs;
+        }
+        List<Job<?,?>> jobs = new ArrayList<Job<?,?>>();
+        for (String name : index.getCandidates(remoteKeys)) {
+            Job<?,?> job = Jenkins.getInstance().getItemByFullName(name, Job.class);
+            if (job != null) {
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
     private boolean hasBeenTriggered(List<SCM> scmTriggered, SCM scmTrigger) {
         for (SCM scm : scmTriggered) {
             if (scm.equals(scmTrigger)) {
@@ -84,40 +174,66 @@ public class BitbucketJobProbe {
         return false;
     }
 
-    private boolean match(SCM scm, URIish url) {
-        if (scm instanceof GitSCM) {
-            for (RemoteConfig remoteConfig : ((GitSCM) scm).getRepositories()) {
-                for (URIish urIish : remoteConfig.getURIs()) {
-                    if (GitStatus.looselyMatches(urIish, url)) {
+    /**
+     * Whether the branch specifications of the SCM accept one of the pushed references. Always true when the
+     * payload does not describe the references, for parameterized branch specifications, and for non Git SCMs.
+     */
+    private boolean matchesRefs(SCM scm, List<BitbucketRefChange> changes) {
+        if (changes.isEmpty() || !(scm instanceof GitSCM)) {
+            return true;
+        }
+        GitSCM git = (GitSCM) scm;
+        if (git.getBranches().isEmpty()) {
+            return true;
+        }
+        for (BranchSpec spec : git.getBranches()) {
+            if (spec.getName() == null || spec.getName().contains("$")) {
+                return true;
+            }
+            for (BitbucketRefChange change : changes) {
+                for (String name : getRefNames(git, change)) {
+                    if (spec.matches(name)) {
                         return true;
                     }
                 }
             }
-        } else if (scm instanceof MercurialSCM) {
-            try {
-                URI hgUri = new URI(((MercurialSCM) scm).getSource());
-                String remote = url.toString();
-                if (looselyMatches(hgUri, remote)) {
-                    return true;
-                }
-            } catch (URISyntaxException ex) {
-                LOGGER.log(Level.SEVERE, "Could not parse jobSource uri: {0} ", ex);
-            }
         }
         return false;
     }
 
-    private boolean looselyMatches(URI notifyUri, String repository) {
-        boolean result = false;
-        try {
-            URI repositoryUri = new URI(repository);
-            result = Objects.equal(notifyUri.getHost(), repositoryUri.getHost())
-            && Objects.equal(notifyUri.getPath(), repositoryUri.getPath())
-            && Objects.equal(notifyUri.getQuery(), repositoryUri.getQuery());
-        } catch (URISyntaxException ex) {
-            LOGGER.log(Level.SEVERE, "Could not parse repository uri: {0}, {1}", new Object[]{repository, ex});
+    /**
+     * The names a pushed reference can be known by in a Git branch specification.
+     */
+    private List<String> getRefNames(GitSCM git, BitbucketRefChange change) {
+        List<String> names = new ArrayList<String>();
+        String name = change.getName();
+        if (BitbucketRefChange.TAG.equals(change.getType())) {
+            names.add("refs/tags/" + name);
+        } else {
+            names.add("refs/heads/" + name);
+            for (RemoteConfig remoteConfig : git.getRepositories()) {
+                names.add(remoteConfig.getName() + "/" + name);
+                names.add("refs/remotes/" + remoteConfig.getName() + "/" + name);
+            }
         }
-        return result;
+        names.add(name);
+        return names;
+    }
+
+    boolean match(SCM scm, URIish url) {
+        return match(scm, BitbucketRepositoryKey.ofRemote(url));
+    }
+
+    /**
+     * Whether the SCM is configured with one of the given {@link BitbucketRepositoryKey keys} of the pushed repository.
+     */
+    boolean match(SCM scm, Set<String> remoteKeys) {
+        for (String key : BitbucketRepositoryKey.of(scm)) {
+            if (remoteKeys.contains(key)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private static final Logger LOGGER = Logger.getLogger(BitbucketJobProbe.class.getName());
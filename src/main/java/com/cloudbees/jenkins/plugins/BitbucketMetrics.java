@@ -0,0 +1,359 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import net.sf.json.JSONObject;
+
+import javax.annotation.CheckForNull;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counters and latency histograms of the hook to build pipeline: reception in {@link BitbucketHookReceiver},
+ * payload processing in {@link BitbucketPayloadProcessor}, job matching in {@link BitbucketJobProbe} and polling
+ * in {@link BitBucketTrigger}, and the stages between a hook and the start of the build it triggered, see
+ * {@link BitBucketTriggerTimings}.
+ *
+ * Recording only updates atomic counters of preallocated histograms. The metrics are exposed as JSON at
+ * {@code bitbucket-hook/metrics} and through JMX as {@value #OBJECT_NAME}.
+ */
+public final class BitbucketMetrics implements BitbucketMetricsMBean {
+
+    static final String OBJECT_NAME = "com.cloudbees.jenkins.plugins.bitbucket:type=Metrics";
+
+    private static final BitbucketMetrics INSTANCE = new BitbucketMetrics();
+
+    final AtomicLong hooksReceived = new AtomicLong();
+    final AtomicLong hooksIgnored = new AtomicLong();
+    final AtomicLong hooksFailed = new AtomicLong();
+    final AtomicLong duplicateDeliveries = new AtomicLong();
+    final AtomicLong uniqueDeliveries = new AtomicLong();
+    final Histogram bodyRead = new Histogram();
+    final Histogram parse = new Histogram();
+
+    private final ConcurrentMap<String, Histogram> processing = new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * Most repositories tracked by {@link #pollQueueWait(String)}, the following ones share a histogram.
+     */
+    static final int MAX_REPOSITORIES = 1000;
+    static final String OTHER_REPOSITORIES = "other";
+
+    final AtomicLong jobsScanned = new AtomicLong();
+    final AtomicLong jobsMatched = new AtomicLong();
+    final Histogram probe = new Histogram();
+
+    final AtomicLong pollsWithChanges = new AtomicLong();
+    final AtomicLong pollsWithoutChanges = new AtomicLong();
+    final AtomicLong remoteHeadLookups = new AtomicLong();
+    final AtomicLong remoteHeadReuses = new AtomicLong();
+    final Histogram pollQueueWait = new Histogram();
+    final Histogram pollDuration = new Histogram();
+    private final ConcurrentMap<String, Histogram> pollQueueWaitByRepository = new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * Most jobs tracked by {@link #triggerLatency(String)}, the following ones share their histograms.
+     */
+    static final int MAX_JOBS = 1000;
+    static final String OTHER_JOBS = "other";
+
+    final TriggerLatency triggerLatency = new TriggerLatency();
+    private final ConcurrentMap<String, TriggerLatency> triggerLatencyByJob = new ConcurrentHashMap<String, TriggerLatency>();
+
+    private BitbucketMetrics() {
+    }
+
+    public static BitbucketMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Histogram of the processing time of one type of event, {@code repo:push} or {@code post} for the POST service.
+     */
+    Histogram processing(String eventType) {
+        return histogram(processing, eventType);
+    }
+
+    /**
+     * Histogram of the time polls of a repository wait in the {@link BitbucketPollingExecutor}.
+     */
+    Histogram pollQueueWait(String repository) {
+        if (pollQueueWaitByRepository.size() >= MAX_REPOSITORIES && !pollQueueWaitByRepository.containsKey(repository)) {
+            repository = OTHER_REPOSITORIES;
+        }
+        return histogram(pollQueueWaitByRepository, repository);
+    }
+
+    /**
+     * Histograms of the trigger stages of the builds of a job.
+     */
+    TriggerLatency triggerLatency(String job) {
+        if (triggerLatencyByJob.size() >= MAX_JOBS && !triggerLatencyByJob.containsKey(job)) {
+            job = OTHER_JOBS;
+        }
+        TriggerLatency latency = triggerLatencyByJob.get(job);
+        if (latency == null) {
+            TriggerLatency created = new TriggerLatency();
+            latency = triggerLatencyByJob.putIfAbsent(job, created);
+            if (latency == null) {
+                latency = created;
+            }
+        }
+        return latency;
+    }
+
+    /**
+     * The histograms of {@link #triggerLatency(String)} as JSON, or null if no build of the job was recorded.
+     */
+    @CheckForNull
+    JSONObject triggerLatencyToJSON(String job) {
+        TriggerLatency latency = triggerLatencyByJob.get(job);
+        return latency != null ? latency.toJSON() : null;
+    }
+
+    /**
+     * Records the stage durations of a build triggered by BitBucket, see {@link BitBucketTriggerTimings#getStages()}.
+     */
+    void recordTrigger(String job, Map<String, Long> stages) {
+        triggerLatency.record(stages);
+        triggerLatency(job).record(stages);
+    }
+
+    private static Histogram histogram(ConcurrentMap<String, Histogram> histograms, String key) {
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(key, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    public long getHooksReceived() {
+        return hooksReceived.get();
+    }
+
+    public long getHooksIgnored() {
+        return hooksIgnored.get();
+    }
+
+    public long getHooksFailed() {
+        return hooksFailed.get();
+    }
+
+    public long getDuplicateDeliveries() {
+        return duplicateDeliveries.get();
+    }
+
+    public long getUniqueDeliveries() {
+        return uniqueDeliveries.get();
+    }
+
+    public long getJobsScanned() {
+        return jobsScanned.get();
+    }
+
+    public long getJobsMatched() {
+        return jobsMatched.get();
+    }
+
+    public long getPollsWithChanges() {
+        return pollsWithChanges.get();
+    }
+
+    public long getPollsWithoutChanges() {
+        return pollsWithoutChanges.get();
+    }
+
+    public long getParseP95Micros() {
+        return parse.percentile(0.95);
+    }
+
+    public long getProbeP95Micros() {
+        return probe.percentile(0.95);
+    }
+
+    public long getPollQueueWaitP95Micros() {
+        return pollQueueWait.percentile(0.95);
+    }
+
+    public long getPollDurationP95Micros() {
+        return pollDuration.percentile(0.95);
+    }
+
+    public long getTriggerP95Micros() {
+        return triggerLatency.stage(BitBucketTriggerTimings.TOTAL).percentile(0.95);
+    }
+
+    public String getJson() {
+        return toJSON(false).toString();
+    }
+
+    /**
+     * @param detailed whether to break the polling metrics down by repository and the trigger latency by job, which
+     *                 names the repositories and jobs
+     */
+    public JSONObject toJSON(boolean detailed) {
+        JSONObject processingByType = new JSONObject();
+        for (Map.Entry<String, Histogram> e : processing.entrySet()) {
+            processingByType.element(e.getKey(), e.getValue().toJSON());
+        }
+        JSONObject polling = new JSONObject()
+                .element("withChanges", pollsWithChanges.get())
+                .element("withoutChanges", pollsWithoutChanges.get())
+                .element("remoteHeadLookups", remoteHeadLookups.get())
+                .element("remoteHeadReuses", remoteHeadReuses.get())
+                .element("queueWait", pollQueueWait.toJSON());
+        if (detailed) {
+            JSONObject queueWaitByRepository = new JSONObject();
+            for (Map.Entry<String, Histogram> e : new TreeMap<String, Histogram>(pollQueueWaitByRepository).entrySet()) {
+                queueWaitByRepository.element(e.getKey(), e.getValue().toJSON());
+            }
+            polling.element("queueWaitByRepository", queueWaitByRepository);
+        }
+        polling.element("duration", pollDuration.toJSON());
+        JSONObject trigger = new JSONObject().element("stages", triggerLatency.toJSON());
+        if (detailed) {
+            JSONObject triggerByJob = new JSONObject();
+            for (Map.Entry<String, TriggerLatency> e : new TreeMap<String, TriggerLatency>(triggerLatencyByJob).entrySet()) {
+                triggerByJob.element(e.getKey(), e.getValue().toJSON());
+            }
+            trigger.element("byJob", triggerByJob);
+        }
+        return new JSONObject()
+                .element("receiver", new JSONObject()
+                        .element("received", hooksReceived.get())
+                        .element("ignored", hooksIgnored.get())
+                        .element("failed", hooksFailed.get())
+                        .element("deliveryCache", new JSONObject()
+                                .element("hits", duplicateDeliveries.get())
+                                .element("misses", uniqueDeliveries.get()))
+                        .element("bodyRead", bodyRead.toJSON())
+                        .element("parse", parse.toJSON()))
+                .element("processing", processingByType)
+                .element("probe", new JSONObject()
+                        .element("jobsScanned", jobsScanned.get())
+                        .element("jobsMatched", jobsMatched.get())
+                        .element("duration", probe.toJSON()))
+                .element("polling", polling)
+                .element("trigger", trigger);
+    }
+
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            LOGGER.log(Level.FINE, "BitBucket metrics MBean not registered", e);
+        }
+    }
+
+    /**
+     * Latency histogram with power of two buckets in microseconds.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Records a duration measured with {@link System#nanoTime()}.
+         */
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+            count.incrementAndGet();
+            total.addAndGet(micros);
+            long current = max.get();
+            while (micros > current && !max.compareAndSet(current, micros)) {
+                current = max.get();
+            }
+        }
+
+        /**
+         * Upper bound in microseconds of the bucket holding the given percentile.
+         */
+        long percentile(double p) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(i == 0 ? 0 : 1L << i, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        JSONObject toJSON() {
+            long n = count.get();
+            return new JSONObject()
+                    .element("count", n)
+                    .element("meanMicros", n == 0 ? 0 : total.get() / n)
+                    .element("p50Micros", percentile(0.50))
+                    .element("p95Micros", percentile(0.95))
+                    .element("p99Micros", percentile(0.99))
+                    .element("maxMicros", max.get());
+        }
+    }
+
+    /**
+     * One {@link Histogram} per stage of {@link BitBucketTriggerTimings#STAGES}.
+     */
+    static final class TriggerLatency {
+        private final Map<String, Histogram> stages = new LinkedHashMap<String, Histogram>();
+
+        TriggerLatency() {
+            for (String stage : BitBucketTriggerTimings.STAGES) {
+                stages.put(stage, new Histogram());
+            }
+        }
+
+        Histogram stage(String stage) {
+            return stages.get(stage);
+        }
+
+        void record(Map<String, Long> durations) {
+            for (Map.Entry<String, Long> e : durations.entrySet()) {
+                Histogram histogram = stages.get(e.getKey());
+                if (histogram != null) {
+                    histogram.record(TimeUnit.MILLISECONDS.toNanos(e.getValue()));
+                }
+            }
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            for (Map.Entry<String, Histogram> e : stages.entrySet()) {
+                json.element(e.getKey(), e.getValue().toJSON());
+            }
+            return json;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketMetrics.class.getName());
+}
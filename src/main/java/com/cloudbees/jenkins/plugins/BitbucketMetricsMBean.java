@@ -0,0 +1,47 @@
+package com.cloudbees.jenkins.plugins;
+
+/**
+ * JMX view of {@link BitbucketMetrics}.
+ */
+public interface BitbucketMetricsMBean {
+
+    long getHooksReceived();
+
+    long getHooksIgnored();
+
+    long getHooksFailed();
+
+    /**
+     * Retried deliveries dropped by the delivery cache.
+     */
+    long getDuplicateDeliveries();
+
+    long getUniqueDeliveries();
+
+    long getJobsScanned();
+
+    long getJobsMatched();
+
+    long getPollsWithChanges();
+
+    long getPollsWithoutChanges();
+
+    long getParseP95Micros();
+
+    long getProbeP95Micros();
+
+    long getPollQueueWaitP95Micros();
+
+    long getPollDurationP95Micros();
+
+    /**
+     * From the hook request to the start of the build it triggered.
+     */
+    long getTriggerP95Micros();
+
+    /**
+     * All metrics, as served at {@code bitbucket-hook/metrics} to users who are not administrators: the breakdowns
+     * by repository and job are left out, since JMX access is not checked against Jenkins permissions.
+     */
+    String getJson();
+}
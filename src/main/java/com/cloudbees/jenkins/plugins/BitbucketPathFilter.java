@@ -0,0 +1,105 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.Util;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Include and exclude patterns on the paths changed by a push, compiled once into a single regular expression each.
+ *
+ * Patterns are Ant style: {@code *} matches within a directory, {@code **} across directories, {@code ?} a single
+ * character, and a pattern ending with {@code /} matches everything below the directory. Patterns are separated by
+ * commas or new lines.
+ */
+final class BitbucketPathFilter {
+
+    private final Pattern includes;
+    private final Pattern excludes;
+
+    BitbucketPathFilter(@CheckForNull String includes, @CheckForNull String excludes) {
+        this.includes = compile(includes);
+        this.excludes = compile(excludes);
+    }
+
+    /**
+     * Whether the filter lets every path through.
+     */
+    boolean isEmpty() {
+        return includes == null && excludes == null;
+    }
+
+    /**
+     * Whether one of the paths is included and not excluded. Always true when the paths are unknown.
+     */
+    boolean matchesAny(@CheckForNull Collection<String> paths) {
+        if (paths == null || isEmpty()) {
+            return true;
+        }
+        for (String path : paths) {
+            if (matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean matches(String path) {
+        return (includes == null || includes.matcher(path).matches())
+                && (excludes == null || !excludes.matcher(path).matches());
+    }
+
+    @CheckForNull
+    private static Pattern compile(@CheckForNull String patterns) {
+        List<String> regexes = new ArrayList<String>();
+        if (patterns != null) {
+            for (String pattern : patterns.split("[,\\n]")) {
+                pattern = Util.fixEmptyAndTrim(pattern);
+                if (pattern != null) {
+                    regexes.add(toRegex(pattern));
+                }
+            }
+        }
+        if (regexes.isEmpty()) {
+            return null;
+        }
+        return Pattern.compile(Util.join(regexes, "|"));
+    }
+
+    static String toRegex(String pattern) {
+        if (pattern.startsWith("/")) {
+            pattern = pattern.substring(1);
+        }
+        if (pattern.endsWith("/")) {
+            pattern += "**";
+        }
+        StringBuilder regex = new StringBuilder("(?:");
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (pattern.startsWith("**/", i)) {
+                regex.append("(?:.*/)?");
+                i += 3;
+            } else if (pattern.startsWith("**", i)) {
+                regex.append(".*");
+                i += 2;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+                i++;
+            } else if (c == '?') {
+                regex.append("[^/]");
+                i++;
+            } else {
+                if ("\\.[]{}()+-^$|".indexOf(c) >= 0) {
+                    regex.append('\\');
+                }
+                regex.append(c);
+                i++;
+            }
+        }
+        return regex.append(')').toString();
+    }
+}
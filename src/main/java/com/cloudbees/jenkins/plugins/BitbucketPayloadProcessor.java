@@ -1,14 +1,29 @@
 package com.cloudbees.jenkins.plugins;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.CheckForNull;
 import javax.servlet.http.HttpServletRequest;
 
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
 import net.sf.json.JSONObject;
 
 public class BitbucketPayloadProcessor {
 
+    /**
+     * Webhook 2.0 event keys handled.
+     */
+    private static final Set<String> SUPPORTED_EVENTS = new HashSet<String>(Arrays.asList("repo:push",
+            BitbucketPullRequest.CREATED, BitbucketPullRequest.UPDATED, BitbucketPullRequest.FULFILLED));
+
     private final BitbucketJobProbe probe;
 
     public BitbucketPayloadProcessor(BitbucketJobProbe probe) {
@@ -20,18 +35,110 @@ public class BitbucketPayloadProcessor {
     }
 
     public void processPayload(JSONObject payload, HttpServletRequest request) {
-        if ("Bitbucket-Webhooks/2.0".equals(request.getHeader("user-agent"))) {
-            if ("repo:push".equals(request.getHeader("x-event-key"))) {
+        processPayload(payload, request.getHeader("user-agent"), request.getHeader("x-event-key"));
+    }
+
+    /**
+     * Processes a payload outside of the request it was received with.
+     *
+     * @param userAgent value of the {@code User-Agent} header of the hook request
+     * @param eventKey value of the {@code X-Event-Key} header of the hook request
+     */
+    public void processPayload(JSONObject payload, String userAgent, String eventKey) {
+        processPayload(payload, payload.toString(), userAgent, eventKey);
+    }
+
+    /**
+     * Processes a payload read with only the fields this processor needs.
+     *
+     * @param payload the fields of the payload listed by {@link BitbucketPayloadReader#FIELDS}
+     * @param rawPayload the complete JSON payload, handed to the triggered builds
+     */
+    public void processPayload(JSONObject payload, String rawPayload, String userAgent, String eventKey) {
+        processPayload(payload, rawPayload, userAgent, eventKey, -1, -1);
+    }
+
+    /**
+     * @param parseNanos time taken to read the payload, recorded in the {@link BitbucketEventTrace}, or -1
+     * @param receivedAt when the hook request was received, or -1 for now
+     */
+    void processPayload(JSONObject payload, String rawPayload, String userAgent, String eventKey, long parseNanos,
+                        long receivedAt) {
+        long start = System.nanoTime();
+        BitbucketEvent event = toEvent(payload, rawPayload, userAgent, eventKey);
+        if (event != null) {
+            if (receivedAt > 0) {
+                event.setReceivedAt(receivedAt);
+            }
+            event.getTrace().parsed(getType(userAgent, eventKey), parseNanos);
+            processEvent(event);
+            BitbucketMetrics.get().processing(getType(userAgent, eventKey)).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Routes the event described by a payload without triggering anything.
+     *
+     * @return how the event would be routed, or null if the payload does not describe an event
+     */
+    @CheckForNull
+    BitbucketEventTrace dryRun(JSONObject payload, String rawPayload, String userAgent, String eventKey, long parseNanos) {
+        BitbucketEvent event = toEvent(payload, rawPayload, userAgent, eventKey);
+        if (event == null) {
+            return null;
+        }
+        event.getTrace().parsed(getType(userAgent, eventKey), parseNanos);
+        probe.route(event, true);
+        return event.getTrace();
+    }
+
+    private static String getType(String userAgent, String eventKey) {
+        return isWebhook(userAgent) ? eventKey : "post";
+    }
+
+    /**
+     * Triggers the jobs interested in an event.
+     */
+    public void processEvent(BitbucketEvent event) {
+        probe.triggerMatchingJobs(event);
+    }
+
+    /**
+     * Reads the event described by a payload without triggering anything.
+     *
+     * @return the event, or null if the payload does not describe a push
+     */
+    @CheckForNull
+    public BitbucketEvent toEvent(JSONObject payload, String rawPayload, String userAgent, String eventKey) {
+        if (isWebhook(userAgent)) {
+            if ("repo:push".equals(eventKey)) {
                 LOGGER.log(Level.INFO, "Processing new Webhooks payload");
-                processWebhookPayload(payload);
+                return getWebhookEvent(payload, rawPayload);
             }
+            if (SUPPORTED_EVENTS.contains(eventKey)) {
+                LOGGER.log(Level.INFO, "Processing {0} Webhooks payload", eventKey);
+                return getPullRequestEvent(payload, rawPayload, eventKey);
+            }
+            return null;
         } else {
             LOGGER.log(Level.INFO, "Processing old POST service payload");
-            processPostServicePayload(payload);
+            return getPostServiceEvent(payload, rawPayload);
         }
     }
 
-    private void processWebhookPayload(JSONObject payload) {
+    /**
+     * Whether hooks with these headers are processed, so that other Webhook 2.0 events can be dismissed
+     * before their body is read.
+     */
+    public boolean isSupported(String userAgent, String eventKey) {
+        return !isWebhook(userAgent) || SUPPORTED_EVENTS.contains(eventKey);
+    }
+
+    private static boolean isWebhook(String userAgent) {
+        return "Bitbucket-Webhooks/2.0".equals(userAgent);
+    }
+
+    private BitbucketEvent getWebhookEvent(JSONObject payload, String rawPayload) {
         if (payload.has("repository")) {
             JSONObject repo = payload.getJSONObject("repository");
             LOGGER.log(Level.INFO, "Received commit hook notification for {0}", repo);
@@ -40,16 +147,89 @@ public class BitbucketPayloadProcessor {
             String url = repo.getJSONObject("links").getJSONObject("html").getString("href");
             String scm = repo.has("scm") ? repo.getString("scm") : "git";
 
-            probe.triggerMatchingJobs(user, url, scm, payload.toString());
+            return new BitbucketEvent(user, url, scm, rawPayload, getPushChanges(payload));
         } else if (payload.has("scm")) {
             LOGGER.log(Level.INFO, "Received commit hook notification for hg: {0}", payload);
             String user = payload.getJSONObject("owner").getString("username");
             String url = payload.getJSONObject("links").getJSONObject("html").getString("href");
             String scm = payload.has("scm") ? payload.getString("scm") : "hg";
 
-            probe.triggerMatchingJobs(user, url, scm, payload.toString());
+            return new BitbucketEvent(user, url, scm, rawPayload);
         }
+        return null;
+    }
 
+    private BitbucketEvent getPullRequestEvent(JSONObject payload, String rawPayload, String eventKey) {
+        JSONObject repo = payload.getJSONObject("repository");
+        JSONObject pr = payload.getJSONObject("pullrequest");
+        LOGGER.log(Level.INFO, "Received pull request hook notification for {0}", repo);
+
+        String user = payload.getJSONObject("actor").getString("username");
+        String url = repo.getJSONObject("links").getJSONObject("html").getString("href");
+        String scm = repo.has("scm") ? repo.getString("scm") : "git";
+        BitbucketPullRequest pullRequest = new BitbucketPullRequest(eventKey, pr.getString("id"),
+                optPath(pr, "title"), optPath(pr, "links", "html", "href"),
+                optPath(pr, "source", "repository", "full_name"), optPath(pr, "source", "branch", "name"),
+                optPath(pr, "source", "commit", "hash"),
+                optPath(pr, "destination", "repository", "full_name"), optPath(pr, "destination", "branch", "name"),
+                optPath(pr, "destination", "commit", "hash"), optPath(pr, "merge_commit", "hash"));
+
+        return new BitbucketEvent(user, url, scm, rawPayload, pullRequest);
+    }
+
+    /**
+     * The string at the given path of nested objects, or null if any of them is missing or null.
+     */
+    private static String optPath(JSONObject object, String... path) {
+        for (int i = 0; i < path.length - 1; i++) {
+            object = object.optJSONObject(path[i]);
+            if (object == null || object.isNullObject()) {
+                return null;
+            }
+        }
+        Object value = object.opt(path[path.length - 1]);
+        return value == null || value instanceof JSONNull ? null : value.toString();
+    }
+
+    /**
+     * References updated by a Webhook 2.0 push, from <pre>push.changes[].new</pre>.
+     */
+    private List<BitbucketRefChange> getPushChanges(JSONObject payload) {
+        List<BitbucketRefChange> changes = new ArrayList<BitbucketRefChange>();
+        JSONObject push = payload.optJSONObject("push");
+        if (push == null || push.isNullObject()) {
+            return changes;
+        }
+        JSONArray pushChanges = push.optJSONArray("changes");
+        if (pushChanges == null) {
+            return changes;
+        }
+        for (int i = 0; i < pushChanges.size(); i++) {
+            JSONObject change = pushChanges.optJSONObject(i);
+            if (change == null || change.isNullObject()) {
+                continue;
+            }
+            JSONObject ref = change.optJSONObject("new");
+            boolean deleted = ref == null || ref.isNullObject();
+            if (deleted) {
+                ref = change.optJSONObject("old");
+                if (ref == null || ref.isNullObject()) {
+                    continue;
+                }
+            }
+            String type = ref.optString("type", BitbucketRefChange.BRANCH);
+            String name = ref.optString("name", null);
+            if (name == null) {
+                continue;
+            }
+            String hash = null;
+            JSONObject target = ref.optJSONObject("target");
+            if (!deleted && target != null && !target.isNullObject()) {
+                hash = target.optString("hash", null);
+            }
+            changes.add(new BitbucketRefChange(type, name, hash));
+        }
+        return changes;
     }
 
 /*
@@ -91,7 +271,7 @@ public class BitbucketPayloadProcessor {
     "user": "marcus"
 }
 */
-    private void processPostServicePayload(JSONObject payload) {
+    private BitbucketEvent getPostServiceEvent(JSONObject payload, String rawPayload) {
         JSONObject repo = payload.getJSONObject("repository");
         LOGGER.log(Level.INFO, "Received commit hook notification for {0}", repo);
 
@@ -99,7 +279,62 @@ public class BitbucketPayloadProcessor {
         String url = payload.getString("canon_url") + repo.getString("absolute_url");
         String scm = repo.getString("scm");
 
-        probe.triggerMatchingJobs(user, url, scm, payload.toString());
+        return new BitbucketEvent(user, url, scm, rawPayload, getCommitBranches(payload), getCommitFiles(payload));
+    }
+
+    /**
+     * Branches updated by an old POST service push, from <pre>commits[].branch</pre>.
+     */
+    private List<BitbucketRefChange> getCommitBranches(JSONObject payload) {
+        List<BitbucketRefChange> changes = new ArrayList<BitbucketRefChange>();
+        JSONArray commits = payload.optJSONArray("commits");
+        if (commits == null) {
+            return changes;
+        }
+        Set<String> branches = new LinkedHashSet<String>();
+        for (int i = 0; i < commits.size(); i++) {
+            JSONObject commit = commits.optJSONObject(i);
+            if (commit == null || commit.isNullObject()) {
+                continue;
+            }
+            String branch = commit.optString("branch", null);
+            if (branch == null || branch.length() == 0 || "null".equals(branch)) {
+                // commits with no branch, e.g. merges, don't tell which references moved
+                return new ArrayList<BitbucketRefChange>();
+            }
+            branches.add(branch);
+        }
+        for (String branch : branches) {
+            changes.add(new BitbucketRefChange(BitbucketRefChange.BRANCH, branch, null));
+        }
+        return changes;
+    }
+
+    /**
+     * Paths changed by an old POST service push, from <pre>commits[].files[].file</pre>, or null if a commit does
+     * not list its files.
+     */
+    private Set<String> getCommitFiles(JSONObject payload) {
+        JSONArray commits = payload.optJSONArray("commits");
+        if (commits == null || commits.isEmpty()) {
+            return null;
+        }
+        Set<String> paths = new LinkedHashSet<String>();
+        for (int i = 0; i < commits.size(); i++) {
+            JSONObject commit = commits.optJSONObject(i);
+            JSONArray files = commit != null && !commit.isNullObject() ? commit.optJSONArray("files") : null;
+            if (files == null) {
+                return null;
+            }
+            for (int j = 0; j < files.size(); j++) {
+                JSONObject file = files.optJSONObject(j);
+                String path = file != null && !file.isNullObject() ? file.optString("file", null) : null;
+                if (path != null) {
+                    paths.add(path);
+                }
+            }
+        }
+        return paths;
     }
 
     private static final Logger LOGGER = Logger.getLogger(BitbucketPayloadProcessor.class.getName());
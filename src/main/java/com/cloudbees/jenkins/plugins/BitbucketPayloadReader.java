@@ -0,0 +1,448 @@
+package com.cloudbees.jenkins.plugins;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads a hook payload in a single pass, keeping only the fields {@link BitbucketPayloadProcessor} uses.
+ *
+ * Everything else, typically commit lists and links, is skipped while reading without being materialized, so
+ * large pushes don't build a full JSON tree. The result has the same shape as the original document, restricted
+ * to {@link #FIELDS}.
+ */
+final class BitbucketPayloadReader {
+
+    /**
+     * Paths of the kept values, {@code []} standing for any element of an array.
+     */
+    static final List<String> FIELDS = Collections.unmodifiableList(Arrays.asList(
+            // Webhook 2.0
+            "actor.username",
+            "repository.links.html.href",
+            "repository.scm",
+            "push.changes[].new.type",
+            "push.changes[].new.name",
+            "push.changes[].new.target.hash",
+            "push.changes[].old.type",
+            "push.changes[].old.name",
+            "pullrequest.id",
+            "pullrequest.title",
+            "pullrequest.links.html.href",
+            "pullrequest.source.repository.full_name",
+            "pullrequest.source.branch.name",
+            "pullrequest.source.commit.hash",
+            "pullrequest.destination.repository.full_name",
+            "pullrequest.destination.branch.name",
+            "pullrequest.destination.commit.hash",
+            "pullrequest.merge_commit.hash",
+            "scm",
+            "owner.username",
+            "links.html.href",
+            // POST service
+            "canon_url",
+            "user",
+            "repository.absolute_url",
+            "commits[].branch",
+            "commits[].files[].file"
+    ));
+
+    private static final Set<String> KEPT = new HashSet<String>(FIELDS);
+    private static final Set<String> TRAVERSED = new HashSet<String>();
+
+    static {
+        for (String field : FIELDS) {
+            for (int i = 0; i < field.length(); i++) {
+                char c = field.charAt(i);
+                if (c == '.' || c == '[') {
+                    TRAVERSED.add(field.substring(0, i));
+                }
+            }
+            if (field.contains("[]")) {
+                TRAVERSED.add(field.substring(0, field.indexOf("[]") + 2));
+            }
+        }
+    }
+
+    private static final Object SKIPPED = new Object();
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int pos;
+    private int limit;
+    /**
+     * Text read since {@link #startCapture()}, up to {@link #captureFrom} in the buffer.
+     */
+    private StringBuilder capture;
+    private int captureFrom;
+
+    private BitbucketPayloadReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the JSON object available from the reader.
+     *
+     * @throws JSONException if the document is not a well formed JSON object
+     */
+    static JSONObject read(Reader in) throws IOException {
+        BitbucketPayloadReader reader = new BitbucketPayloadReader(in);
+        if (reader.nextNonWhitespace() != '{') {
+            throw new JSONException("A JSON payload must begin with '{'");
+        }
+        return reader.readObject("");
+    }
+
+    /**
+     * Reads a hook request replayed in a batch, <pre>{"headers": {...}, "body": {...}}</pre>, in a single pass: the
+     * headers are kept whole, the body is restricted to {@link #FIELDS} and its raw text is kept for the builds.
+     *
+     * @throws JSONException if the document is not a well formed JSON object
+     */
+    static Envelope readEnvelope(Reader in) throws IOException {
+        BitbucketPayloadReader reader = new BitbucketPayloadReader(in);
+        if (reader.nextNonWhitespace() != '{') {
+            throw new JSONException("A JSON payload must begin with '{'");
+        }
+        Envelope envelope = new Envelope();
+        int c = reader.nextNonWhitespace();
+        if (c == '}') {
+            return envelope;
+        }
+        while (true) {
+            if (c != '"') {
+                throw reader.syntaxError("Expected a key");
+            }
+            String key = reader.readString();
+            if (reader.nextNonWhitespace() != ':') {
+                throw reader.syntaxError("Expected ':' after key " + key);
+            }
+            boolean object = reader.peekNonWhitespace() == '{';
+            if ("headers".equals(key) && object) {
+                reader.startCapture();
+                reader.skipValue();
+                envelope.headers = JSONObject.fromObject(reader.stopCapture());
+            } else if ("body".equals(key) && object) {
+                reader.startCapture();
+                reader.next();
+                envelope.payload = reader.readObject("");
+                envelope.rawPayload = reader.stopCapture();
+            } else {
+                reader.skipValue();
+            }
+            c = reader.nextNonWhitespace();
+            if (c == '}') {
+                return envelope;
+            }
+            if (c != ',') {
+                throw reader.syntaxError("Expected ',' or '}'");
+            }
+            c = reader.nextNonWhitespace();
+        }
+    }
+
+    private Object readValue(String path) throws IOException {
+        if (!KEPT.contains(path) && !TRAVERSED.contains(path)) {
+            skipValue();
+            return SKIPPED;
+        }
+        int c = nextNonWhitespace();
+        switch (c) {
+            case '{':
+                return readObject(path);
+            case '[':
+                return readArray(path + "[]");
+            case '"':
+                return readString();
+            default:
+                return readLiteral((char) c);
+        }
+    }
+
+    private JSONObject readObject(String path) throws IOException {
+        JSONObject object = new JSONObject();
+        int c = nextNonWhitespace();
+        if (c == '}') {
+            return object;
+        }
+        while (true) {
+            if (c != '"') {
+                throw syntaxError("Expected a key");
+            }
+            String key = readString();
+            if (nextNonWhitespace() != ':') {
+                throw syntaxError("Expected ':' after key " + key);
+            }
+            Object value = readValue(path.length() == 0 ? key : path + "." + key);
+            if (value != SKIPPED) {
+                object.element(key, quote(value));
+            }
+            c = nextNonWhitespace();
+            if (c == '}') {
+                return object;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            c = nextNonWhitespace();
+        }
+    }
+
+    private JSONArray readArray(String elementPath) throws IOException {
+        JSONArray array = new JSONArray();
+        if (peekNonWhitespace() == ']') {
+            next();
+            return array;
+        }
+        while (true) {
+            Object value = readValue(elementPath);
+            if (value != SKIPPED) {
+                array.element(quote(value));
+            }
+            int c = nextNonWhitespace();
+            if (c == ']') {
+                return array;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+        }
+    }
+
+    /**
+     * Quotes the strings json-lib would otherwise parse again when added to an object or array, such as a title
+     * like {@code [WIP] fix [x]} or {@code null}, as {@code JSONObject.fromObject} does while parsing, so both
+     * give the same values.
+     */
+    private static Object quote(Object value) {
+        if (value instanceof String && JSONUtils.mayBeJSON((String) value)) {
+            return JSONUtils.DOUBLE_QUOTE + value + JSONUtils.DOUBLE_QUOTE;
+        }
+        return value;
+    }
+
+    private String readString() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int c = next();
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c == '\\') {
+                c = next();
+                switch (c) {
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        char[] hex = new char[4];
+                        for (int i = 0; i < 4; i++) {
+                            hex[i] = (char) next();
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(new String(hex), 16));
+                        } catch (NumberFormatException e) {
+                            throw syntaxError("Invalid unicode escape");
+                        }
+                        break;
+                    default: sb.append((char) c);
+                }
+            } else {
+                sb.append((char) c);
+            }
+        }
+    }
+
+    private Object readLiteral(char first) throws IOException {
+        StringBuilder sb = new StringBuilder().append(first);
+        while (true) {
+            int c = peek();
+            if (c == -1 || c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                break;
+            }
+            sb.append((char) next());
+        }
+        String literal = sb.toString();
+        if ("null".equals(literal)) {
+            return JSONNull.getInstance();
+        }
+        if ("true".equals(literal)) {
+            return Boolean.TRUE;
+        }
+        if ("false".equals(literal)) {
+            return Boolean.FALSE;
+        }
+        try {
+            return Long.valueOf(literal);
+        } catch (NumberFormatException e) {
+            try {
+                return Double.valueOf(literal);
+            } catch (NumberFormatException e1) {
+                throw syntaxError("Unexpected value " + literal);
+            }
+        }
+    }
+
+    /**
+     * Skips the next value without keeping any of it.
+     */
+    private void skipValue() throws IOException {
+        int depth = 0;
+        int c = nextNonWhitespace();
+        while (true) {
+            switch (c) {
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case '"':
+                    skipString();
+                    break;
+                default:
+                    // inside a structure literals, separators and whitespace are skipped one character at a time,
+                    // a top level literal ends before the next delimiter
+                    while (depth == 0) {
+                        int p = peek();
+                        if (p == -1 || p == ',' || p == '}' || p == ']' || Character.isWhitespace(p)) {
+                            break;
+                        }
+                        next();
+                    }
+            }
+            if (depth == 0) {
+                return;
+            }
+            c = next();
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            int c = next();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                next();
+            }
+        }
+    }
+
+    private int peekNonWhitespace() throws IOException {
+        while (true) {
+            int c = peek();
+            if (c == -1 || !Character.isWhitespace(c)) {
+                return c;
+            }
+            pos++;
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c = peekNonWhitespace();
+        if (c == -1) {
+            throw syntaxError("Unexpected end of payload");
+        }
+        pos++;
+        return c;
+    }
+
+    private int next() throws IOException {
+        int c = peek();
+        if (c == -1) {
+            throw syntaxError("Unexpected end of payload");
+        }
+        pos++;
+        return c;
+    }
+
+    private void startCapture() {
+        capture = new StringBuilder();
+        captureFrom = pos;
+    }
+
+    private String stopCapture() {
+        capture.append(buffer, captureFrom, pos - captureFrom);
+        String captured = capture.toString();
+        capture = null;
+        return captured;
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit) {
+            if (capture != null) {
+                capture.append(buffer, captureFrom, limit - captureFrom);
+                captureFrom = 0;
+            }
+            limit = in.read(buffer, 0, buffer.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos];
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message);
+    }
+
+    /**
+     * A hook request read by {@link #readEnvelope(Reader)}.
+     */
+    static final class Envelope {
+        private JSONObject headers;
+        private JSONObject payload;
+        private String rawPayload;
+
+        /**
+         * Value of a header, whatever its case.
+         */
+        @CheckForNull
+        String getHeader(String name) {
+            if (headers == null || headers.isNullObject()) {
+                return null;
+            }
+            for (Object key : headers.keySet()) {
+                if (name.equalsIgnoreCase(key.toString())) {
+                    return headers.optString(key.toString(), null);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * The fields of the body listed in {@link #FIELDS}, or null if the body is missing.
+         */
+        @CheckForNull
+        JSONObject getPayload() {
+            return payload;
+        }
+
+        /**
+         * The body as sent.
+         */
+        @CheckForNull
+        String getRawPayload() {
+            return rawPayload;
+        }
+    }
+}
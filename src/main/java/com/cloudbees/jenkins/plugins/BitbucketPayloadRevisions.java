@@ -0,0 +1,79 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.util.BuildData;
+import hudson.scm.SCM;
+import jenkins.triggers.SCMTriggerItem;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.RemoteConfig;
+
+import javax.annotation.CheckForNull;
+import java.io.PrintStream;
+import java.util.Collection;
+
+/**
+ * Decides whether a Git job has changes from the commit hashes of a push payload, by comparing them with the
+ * revisions recorded in the {@link BuildData} of the last build, without contacting the remote.
+ */
+final class BitbucketPayloadRevisions {
+
+    private BitbucketPayloadRevisions() {
+    }
+
+    /**
+     * @return whether the pushed branches point to commits not built yet, or null when the payload does not
+     * allow to decide and the job must be polled
+     */
+    @CheckForNull
+    static Boolean hasChanges(Job<?, ?> job, Collection<BitbucketRefChange> changes, PrintStream logger) {
+        if (changes.isEmpty()) {
+            return null;
+        }
+        SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
+        if (item == null || item.getSCMs().size() != 1) {
+            return null;
+        }
+        SCM scm = item.getSCMs().iterator().next();
+        if (!(scm instanceof GitSCM)) {
+            return null;
+        }
+        GitSCM git = (GitSCM) scm;
+        Run<?, ?> lastBuild = job.getLastBuild();
+        BuildData buildData = lastBuild != null ? git.getBuildData(lastBuild) : null;
+        if (buildData == null) {
+            logger.println("No revision recorded yet, polling");
+            return null;
+        }
+        boolean changed = false;
+        for (BitbucketRefChange change : changes) {
+            String hash = change.getNewHash();
+            if (!BitbucketRefChange.BRANCH.equals(change.getType()) || hash == null || !ObjectId.isId(hash)) {
+                logger.println("Cannot decide from payload for " + change + ", polling");
+                return null;
+            }
+            if (buildData.hasBeenBuilt(ObjectId.fromString(hash))) {
+                logger.println("Payload revision of " + change + " already built");
+                continue;
+            }
+            if (!hasBeenBuilt(git, buildData, change.getName())) {
+                logger.println("Branch " + change.getName() + " never built, polling");
+                return null;
+            }
+            logger.println("Payload revision of " + change + " not built yet");
+            changed = true;
+        }
+        return changed;
+    }
+
+    private static boolean hasBeenBuilt(GitSCM git, BuildData buildData, String branch) {
+        for (RemoteConfig remoteConfig : git.getRepositories()) {
+            if (buildData.getLastBuildOfBranch(remoteConfig.getName() + "/" + branch) != null
+                    || buildData.getLastBuildOfBranch("refs/remotes/" + remoteConfig.getName() + "/" + branch) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,168 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content addressed storage of hook payloads under {@code $JENKINS_HOME/bitbucket-payloads}, so that the builds
+ * triggered by the same push share one compressed copy of the payload instead of each embedding it in its
+ * build.xml.
+ *
+ * Payloads larger than {@code com.cloudbees.jenkins.plugins.BitbucketPayloadStore.maxSize} bytes are not stored,
+ * {@link BitBucketPayload} then keeps them with the build.
+ * Payloads not referenced by a new build for {@code com.cloudbees.jenkins.plugins.BitbucketPayloadStore.retentionDays}
+ * days are deleted, as are the oldest ones once the store exceeds
+ * {@code com.cloudbees.jenkins.plugins.BitbucketPayloadStore.maxTotalSize} bytes.
+ */
+public final class BitbucketPayloadStore {
+
+    static final long MAX_SIZE = Long.getLong(BitbucketPayloadStore.class.getName() + ".maxSize", 10L * 1024 * 1024);
+    static final long MAX_TOTAL_SIZE = Long.getLong(BitbucketPayloadStore.class.getName() + ".maxTotalSize", 1024L * 1024 * 1024);
+    static final int RETENTION_DAYS = Integer.getInteger(BitbucketPayloadStore.class.getName() + ".retentionDays", 30);
+
+    private static final String SUFFIX = ".json.gz";
+
+    private BitbucketPayloadStore() {
+    }
+
+    /**
+     * Stores the payload if it is not stored yet.
+     *
+     * @return the hash the payload can be loaded with, or null if it is over the size cap
+     * @throws IOException if the payload could not be written
+     */
+    @CheckForNull
+    static String put(String payload) throws IOException {
+        byte[] bytes = payload.getBytes("UTF-8");
+        if (bytes.length > MAX_SIZE) {
+            LOGGER.log(Level.WARNING, "Not storing a BitBucket payload of {0} bytes, over the {1} bytes limit, "
+                    + "keeping it with the build",
+                    new Object[]{bytes.length, MAX_SIZE});
+            return null;
+        }
+        String hash = hash(bytes);
+        File file = getFile(hash);
+        if (file.exists()) {
+            // keeps it from being expired while new builds reference it
+            file.setLastModified(System.currentTimeMillis());
+            return hash;
+        }
+        File dir = getRootDir();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File tmp = File.createTempFile(hash, ".tmp", dir);
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp));
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file) && !file.exists()) {
+            tmp.delete();
+            throw new IOException("Could not store payload to " + file);
+        }
+        tmp.delete();
+        return hash;
+    }
+
+    /**
+     * Loads a stored payload.
+     *
+     * @return the payload or null if it is not (or no longer) stored
+     */
+    @CheckForNull
+    static String get(String hash) throws IOException {
+        File file = getFile(hash);
+        if (!file.exists()) {
+            return null;
+        }
+        InputStream in = new GZIPInputStream(new FileInputStream(file));
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    static File getRootDir() {
+        return new File(Jenkins.getInstance().getRootDir(), "bitbucket-payloads");
+    }
+
+    private static File getFile(String hash) {
+        return new File(getRootDir(), hash + SUFFIX);
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            return Util.toHexString(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Deletes expired payloads, then the oldest ones while the store is over its total size.
+     */
+    @Extension
+    public static class Cleanup extends AsyncPeriodicWork {
+        public Cleanup() {
+            super("BitBucket payload store cleanup");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return HOUR;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            File[] files = getRootDir().listFiles();
+            if (files == null) {
+                return;
+            }
+            long expiry = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(RETENTION_DAYS);
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File f1, File f2) {
+                    long m1 = f1.lastModified();
+                    long m2 = f2.lastModified();
+                    return m1 < m2 ? 1 : m1 == m2 ? 0 : -1;
+                }
+            });
+            long total = 0;
+            int deleted = 0;
+            for (File file : files) {
+                total += file.length();
+                if ((file.lastModified() < expiry || total > MAX_TOTAL_SIZE) && file.delete()) {
+                    deleted++;
+                }
+            }
+            if (deleted > 0) {
+                listener.getLogger().println("Deleted " + deleted + " BitBucket payloads");
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketPayloadStore.class.getName());
+}
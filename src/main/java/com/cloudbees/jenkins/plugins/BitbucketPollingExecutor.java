@@ -0,0 +1,293 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import javax.annotation.CheckForNull;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Runs the SCM polls requested by {@link BitBucketTrigger}.
+ *
+ * Polls of different jobs run in parallel up to a concurrency limit, while polls of the same job never overlap
+ * and run in submission order. An optional cap limits the number of concurrent polls against a single remote
+ * host. Both limits are set with the {@code com.cloudbees.jenkins.plugins.BitbucketPollingExecutor.concurrency}
+ * and {@code com.cloudbees.jenkins.plugins.BitbucketPollingExecutor.perHost} system properties, a per host cap
+ * of 0 meaning unlimited.
+ *
+ * Pending polls are queued per repository and the repositories are served in turn, one poll at a time, so a
+ * repository receiving many pushes does not delay the polls of the other ones. The
+ * {@code com.cloudbees.jenkins.plugins.BitbucketPollingExecutor.perRepository} system property caps the concurrent
+ * polls of a repository, 0 meaning unlimited. Polls of the branches matching the
+ * {@code com.cloudbees.jenkins.plugins.BitbucketPollingExecutor.priorityBranches} regular expression, for instance
+ * {@code master|release/.*}, start before the other ones, within the same limits.
+ */
+public class BitbucketPollingExecutor {
+
+    static final int CONCURRENCY = Integer.getInteger(BitbucketPollingExecutor.class.getName() + ".concurrency",
+            Math.max(2, Runtime.getRuntime().availableProcessors() * 2));
+    static final int PER_HOST = Integer.getInteger(BitbucketPollingExecutor.class.getName() + ".perHost", 0);
+    static final int PER_REPOSITORY = Integer.getInteger(BitbucketPollingExecutor.class.getName() + ".perRepository", 0);
+    static final Pattern PRIORITY_BRANCHES = compile(System.getProperty(BitbucketPollingExecutor.class.getName() + ".priorityBranches"));
+
+    private final int concurrency;
+    private final int perHost;
+    private final int perRepository;
+    private final ExecutorService threads;
+
+    /**
+     * Priority polls waiting to start, in submission order. Guarded by {@code this}.
+     */
+    private final LinkedList<Task> priority = new LinkedList<Task>();
+    /**
+     * Other polls waiting to start, in submission order for each repository. Guarded by {@code this}.
+     */
+    private final Map<String, LinkedList<Task>> pending = new HashMap<String, LinkedList<Task>>();
+    /**
+     * Repositories with polls in {@link #pending}, the next one to serve first.
+     */
+    private final LinkedList<String> turns = new LinkedList<String>();
+    private final Set<String> activeJobs = new HashSet<String>();
+    private final Map<String, Integer> activeHosts = new HashMap<String, Integer>();
+    private final Map<String, Integer> activeRepositories = new HashMap<String, Integer>();
+    private int waiting;
+    private int running;
+
+    public BitbucketPollingExecutor() {
+        this(CONCURRENCY, PER_HOST, PER_REPOSITORY);
+    }
+
+    public BitbucketPollingExecutor(int concurrency, int perHost) {
+        this(concurrency, perHost, 0);
+    }
+
+    public BitbucketPollingExecutor(int concurrency, int perHost, int perRepository) {
+        this.concurrency = Math.max(1, concurrency);
+        this.perHost = perHost;
+        this.perRepository = perRepository;
+        this.threads = Executors.newCachedThreadPool(new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketPollingExecutor"));
+    }
+
+    /**
+     * Schedules a poll, in a repository of its own.
+     *
+     * @param job full name of the job, polls with the same value never run concurrently
+     * @param host remote host polled, used for the per host cap, or null if unknown
+     */
+    public void submit(String job, @CheckForNull String host, Runnable poll) {
+        submit(job, host, null, false, poll);
+    }
+
+    /**
+     * Schedules a poll.
+     *
+     * @param job full name of the job, polls with the same value never run concurrently
+     * @param host remote host polled, used for the per host cap, or null if unknown
+     * @param repository repository polled, polls of different repositories are started in turn, or null to use the
+     *                   job name
+     * @param priority whether the poll starts before the ones without priority
+     */
+    public synchronized void submit(String job, @CheckForNull String host, @CheckForNull String repository,
+                                    boolean priority, Runnable poll) {
+        Task task = new Task(job, host, repository != null ? repository : job, poll);
+        if (priority) {
+            this.priority.add(task);
+        } else {
+            LinkedList<Task> queue = pending.get(task.repository);
+            if (queue == null) {
+                queue = new LinkedList<Task>();
+                pending.put(task.repository, queue);
+                turns.add(task.repository);
+            }
+            queue.add(task);
+        }
+        waiting++;
+        dispatch();
+    }
+
+    /**
+     * Whether one of the branches is configured to be polled first.
+     */
+    static boolean isPriority(Collection<String> branches) {
+        if (PRIORITY_BRANCHES == null) {
+            return false;
+        }
+        for (String branch : branches) {
+            if (branch != null && PRIORITY_BRANCHES.matcher(branch).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int getPending() {
+        return waiting;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Number of polls waiting to start for each repository, priority ones included.
+     */
+    public synchronized Map<String, Integer> getPendingByRepository() {
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (Map.Entry<String, LinkedList<Task>> e : pending.entrySet()) {
+            counts.put(e.getKey(), e.getValue().size());
+        }
+        for (Task task : priority) {
+            Integer count = counts.get(task.repository);
+            counts.put(task.repository, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    private synchronized void dispatch() {
+        for (Iterator<Task> it = priority.iterator(); running < concurrency && it.hasNext(); ) {
+            Task task = it.next();
+            if (isStartable(task)) {
+                it.remove();
+                start(task);
+            }
+        }
+        // one poll per repository and turn, until a whole round starts nothing
+        int skipped = 0;
+        while (running < concurrency && skipped < turns.size()) {
+            String repository = turns.removeFirst();
+            LinkedList<Task> queue = pending.get(repository);
+            Task next = null;
+            for (Task task : queue) {
+                if (isStartable(task)) {
+                    next = task;
+                    break;
+                }
+            }
+            if (next == null) {
+                turns.addLast(repository);
+                skipped++;
+                continue;
+            }
+            queue.remove(next);
+            if (queue.isEmpty()) {
+                pending.remove(repository);
+            } else {
+                turns.addLast(repository);
+            }
+            skipped = 0;
+            start(next);
+        }
+    }
+
+    private boolean isStartable(Task task) {
+        return !activeJobs.contains(task.job) && isHostAvailable(task.host)
+                && (perRepository <= 0 || count(activeRepositories, task.repository) < perRepository);
+    }
+
+    private boolean isHostAvailable(String host) {
+        if (perHost <= 0 || host == null) {
+            return true;
+        }
+        return count(activeHosts, host) < perHost;
+    }
+
+    private static int count(Map<String, Integer> active, String key) {
+        Integer count = active.get(key);
+        return count == null ? 0 : count;
+    }
+
+    private static void increment(Map<String, Integer> active, String key) {
+        active.put(key, count(active, key) + 1);
+    }
+
+    private static void decrement(Map<String, Integer> active, String key) {
+        int count = count(active, key);
+        if (count <= 1) {
+            active.remove(key);
+        } else {
+            active.put(key, count - 1);
+        }
+    }
+
+    @CheckForNull
+    private static Pattern compile(@CheckForNull String regex) {
+        if (regex == null || regex.trim().length() == 0) {
+            return null;
+        }
+        try {
+            return Pattern.compile(regex.trim());
+        } catch (PatternSyntaxException e) {
+            // called while initializing the class, before LOGGER
+            Logger.getLogger(BitbucketPollingExecutor.class.getName()).log(Level.WARNING, "Invalid priority branches pattern " + regex, e);
+            return null;
+        }
+    }
+
+    private void start(final Task task) {
+        waiting--;
+        running++;
+        activeJobs.add(task.job);
+        increment(activeRepositories, task.repository);
+        if (task.host != null) {
+            increment(activeHosts, task.host);
+        }
+        threads.execute(new Runnable() {
+            public void run() {
+                long wait = System.nanoTime() - task.submitted;
+                BitbucketMetrics.get().pollQueueWait.record(wait);
+                BitbucketMetrics.get().pollQueueWait(task.repository).record(wait);
+                try {
+                    task.poll.run();
+                } catch (Throwable t) {
+                    LOGGER.log(Level.SEVERE, "BitBucket polling of " + task.job + " failed", t);
+                } finally {
+                    finished(task);
+                }
+            }
+        });
+    }
+
+    private synchronized void finished(Task task) {
+        running--;
+        activeJobs.remove(task.job);
+        decrement(activeRepositories, task.repository);
+        if (task.host != null) {
+            decrement(activeHosts, task.host);
+        }
+        dispatch();
+    }
+
+    private static final class Task {
+        private final String job;
+        private final String host;
+        private final String repository;
+        private final Runnable poll;
+        private final long submitted = System.nanoTime();
+
+        Task(String job, String host, String repository, Runnable poll) {
+            this.job = job;
+            this.host = host;
+            this.repository = repository;
+            this.poll = poll;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketPollingExecutor.class.getName());
+}
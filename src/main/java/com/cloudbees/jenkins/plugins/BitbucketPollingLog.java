@@ -0,0 +1,246 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.Util;
+import hudson.console.AnnotatedLargeText;
+import hudson.model.Job;
+import org.apache.commons.jelly.XMLOutput;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The last polling logs of a job, one file per poll under {@code bitbucket-polling/} in the job directory,
+ * named after the poll start time and the event that triggered it.
+ *
+ * Only the last {@code com.cloudbees.jenkins.plugins.BitbucketPollingLog.entries} logs are kept, and each of them
+ * is truncated after {@code com.cloudbees.jenkins.plugins.BitbucketPollingLog.maxSize} bytes.
+ */
+public class BitbucketPollingLog {
+
+    static final int MAX_ENTRIES = Integer.getInteger(BitbucketPollingLog.class.getName() + ".entries", 10);
+    static final long MAX_SIZE = Long.getLong(BitbucketPollingLog.class.getName() + ".maxSize", 1024L * 1024);
+
+    /**
+     * Single log file of the plugin versions that did not keep a history.
+     */
+    static final String LEGACY_LOG = "bitbucket-polling.log";
+
+    private static final Pattern ENTRY_NAME = Pattern.compile("(\\d{13})-([\\w.-]*)\\.log");
+
+    /**
+     * Entries being written.
+     */
+    private static final Set<File> WRITING = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    private final Job<?, ?> job;
+
+    public BitbucketPollingLog(Job<?, ?> job) {
+        this.job = job;
+    }
+
+    public File getRootDir() {
+        return new File(job.getRootDir(), "bitbucket-polling");
+    }
+
+    /**
+     * Returns the entries, latest first.
+     */
+    public List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<Entry>();
+        String[] names = getRootDir().list();
+        if (names != null) {
+            Arrays.sort(names, Collections.reverseOrder());
+            for (String name : names) {
+                Matcher m = ENTRY_NAME.matcher(name);
+                if (m.matches()) {
+                    entries.add(new Entry(new File(getRootDir(), name), Long.parseLong(m.group(1)), m.group(2)));
+                }
+            }
+        }
+        File legacy = new File(job.getRootDir(), LEGACY_LOG);
+        if (legacy.exists()) {
+            entries.add(new Entry(legacy, legacy.lastModified(), ""));
+        }
+        return entries;
+    }
+
+    @CheckForNull
+    public Entry getLatest() {
+        List<Entry> entries = getEntries();
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    @CheckForNull
+    public Entry getEntry(String name) {
+        for (Entry entry : getEntries()) {
+            if (entry.getName().equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates the log of a new poll and drops the oldest ones beyond the history size.
+     *
+     * @param eventId id of the event that triggered the poll
+     */
+    public Entry newEntry(String eventId) throws IOException {
+        File dir = getRootDir();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        long timestamp = System.currentTimeMillis();
+        String id = eventId != null ? eventId.replaceAll("[^\\w.-]", "_") : "";
+        File file = new File(dir, String.format("%013d-%s.log", timestamp, id));
+        Entry entry = new Entry(file, timestamp, id);
+        List<Entry> entries = getEntries();
+        for (int i = MAX_ENTRIES - 1; i < entries.size(); i++) {
+            entries.get(i).getFile().delete();
+        }
+        return entry;
+    }
+
+    /**
+     * The log of one poll.
+     */
+    public final class Entry {
+        private final File file;
+        private final long timestamp;
+        private final String eventId;
+
+        Entry(File file, long timestamp, String eventId) {
+            this.file = file;
+            this.timestamp = timestamp;
+            this.eventId = eventId;
+        }
+
+        public Job<?, ?> getOwner() {
+            return job;
+        }
+
+        public String getName() {
+            return file.getName();
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public Date getTimestamp() {
+            return new Date(timestamp);
+        }
+
+        /**
+         * Id of the event that triggered the poll, empty if unknown.
+         */
+        public String getEventId() {
+            return eventId;
+        }
+
+        public long getSize() {
+            return file.length();
+        }
+
+        public String getDisplayName() {
+            return Util.XS_DATETIME_FORMATTER.format(getTimestamp()) + (eventId.length() > 0 ? " (" + eventId + ")" : "");
+        }
+
+        public boolean isWriting() {
+            return WRITING.contains(file);
+        }
+
+        /**
+         * Opens the entry for writing. Writes are appended and stop at the size cap.
+         */
+        public OutputStream write() throws IOException {
+            WRITING.add(file);
+            return new CappedOutputStream(new FileOutputStream(file, true), MAX_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        WRITING.remove(file);
+                    }
+                }
+            };
+        }
+
+        public AnnotatedLargeText<Entry> getLogText() {
+            return new AnnotatedLargeText<Entry>(file, Charset.defaultCharset(), !isWriting(), this);
+        }
+
+        /**
+         * Writes the annotated log to the given output, from the given offset.
+         */
+        public void writeLogTo(long offset, XMLOutput out) throws IOException {
+            getLogText().writeHtmlTo(offset, out.asWriter());
+        }
+
+        /**
+         * Sends the log from the offset requested by the progressive text tag.
+         */
+        public void doProgressiveHtml(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            getLogText().doProgressiveHtml(req, rsp);
+        }
+    }
+
+    /**
+     * Drops anything written past a size limit, with a note at the point of truncation.
+     */
+    private static class CappedOutputStream extends FilterOutputStream {
+        private long remaining;
+        private boolean truncated;
+
+        CappedOutputStream(OutputStream out, long limit) {
+            super(out);
+            this.remaining = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (remaining > 0) {
+                out.write(b);
+                remaining--;
+            } else {
+                truncate();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int n = (int) Math.min(len, remaining);
+            if (n > 0) {
+                out.write(b, off, n);
+                remaining -= n;
+            }
+            if (n < len) {
+                truncate();
+            }
+        }
+
+        private void truncate() throws IOException {
+            if (!truncated) {
+                truncated = true;
+                out.write("\n[log truncated]\n".getBytes("UTF-8"));
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.cloudbees.jenkins.plugins;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A pull request as described by a Webhook 2.0 {@code pullrequest:*} event.
+ */
+public class BitbucketPullRequest {
+
+    public static final String CREATED = "pullrequest:created";
+    public static final String UPDATED = "pullrequest:updated";
+    public static final String FULFILLED = "pullrequest:fulfilled";
+
+    private final String eventKey;
+    private final String id;
+    private final String title;
+    private final String url;
+    private final String sourceRepository;
+    private final String sourceBranch;
+    private final String sourceCommit;
+    private final String destinationRepository;
+    private final String destinationBranch;
+    private final String destinationCommit;
+    private final String mergeCommit;
+
+    public BitbucketPullRequest(@Nonnull String eventKey, @Nonnull String id, @CheckForNull String title, @CheckForNull String url,
+                                @CheckForNull String sourceRepository, @CheckForNull String sourceBranch, @CheckForNull String sourceCommit,
+                                @CheckForNull String destinationRepository, @CheckForNull String destinationBranch,
+                                @CheckForNull String destinationCommit, @CheckForNull String mergeCommit) {
+        this.eventKey = eventKey;
+        this.id = id;
+        this.title = title;
+        this.url = url;
+        this.sourceRepository = sourceRepository;
+        this.sourceBranch = sourceBranch;
+        this.sourceCommit = sourceCommit;
+        this.destinationRepository = destinationRepository;
+        this.destinationBranch = destinationBranch;
+        this.destinationCommit = destinationCommit;
+        this.mergeCommit = mergeCommit;
+    }
+
+    /**
+     * {@link #CREATED}, {@link #UPDATED} or {@link #FULFILLED}.
+     */
+    @Nonnull
+    public String getEventKey() {
+        return eventKey;
+    }
+
+    @Nonnull
+    public String getId() {
+        return id;
+    }
+
+    @CheckForNull
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Web page of the pull request.
+     */
+    @CheckForNull
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Full name of the repository the changes come from, {@code owner/slug}.
+     */
+    @CheckForNull
+    public String getSourceRepository() {
+        return sourceRepository;
+    }
+
+    @CheckForNull
+    public String getSourceBranch() {
+        return sourceBranch;
+    }
+
+    @CheckForNull
+    public String getSourceCommit() {
+        return sourceCommit;
+    }
+
+    /**
+     * Full name of the repository the pull request targets, {@code owner/slug}.
+     */
+    @CheckForNull
+    public String getDestinationRepository() {
+        return destinationRepository;
+    }
+
+    @CheckForNull
+    public String getDestinationBranch() {
+        return destinationBranch;
+    }
+
+    @CheckForNull
+    public String getDestinationCommit() {
+        return destinationCommit;
+    }
+
+    /**
+     * Commit that merged the pull request, for fulfilled pull requests.
+     */
+    @CheckForNull
+    public String getMergeCommit() {
+        return mergeCommit;
+    }
+
+    /**
+     * Whether the source branch lives in the destination repository rather than in a fork.
+     */
+    public boolean isFromSameRepository() {
+        return sourceRepository != null && sourceRepository.equals(destinationRepository);
+    }
+
+    /**
+     * The commit the build should check out: the merge commit of a fulfilled pull request, or the source commit
+     * when it can be fetched from the destination repository.
+     */
+    @CheckForNull
+    public String getCommitToBuild() {
+        if (FULFILLED.equals(eventKey)) {
+            return mergeCommit;
+        }
+        return isFromSameRepository() ? sourceCommit : null;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id + " " + sourceBranch + " -> " + destinationBranch + " (" + eventKey + ")";
+    }
+}
@@ -0,0 +1,49 @@
+package com.cloudbees.jenkins.plugins;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A reference updated by a push, as described by the hook payload.
+ */
+public class BitbucketRefChange {
+
+    public static final String BRANCH = "branch";
+    public static final String TAG = "tag";
+
+    private final String type;
+    private final String name;
+    private final String newHash;
+
+    public BitbucketRefChange(@Nonnull String type, @Nonnull String name, @CheckForNull String newHash) {
+        this.type = type;
+        this.name = name;
+        this.newHash = newHash;
+    }
+
+    /**
+     * {@link #BRANCH}, {@link #TAG} or any other reference type reported by Bitbucket.
+     */
+    @Nonnull
+    public String getType() {
+        return type;
+    }
+
+    @Nonnull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Commit the reference points to after the push, or null if it was deleted or the payload does not say.
+     */
+    @CheckForNull
+    public String getNewHash() {
+        return newHash;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + name + (newHash != null ? "@" + newHash : "");
+    }
+}
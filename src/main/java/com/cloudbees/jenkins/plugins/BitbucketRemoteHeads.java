@@ -0,0 +1,284 @@
+package com.cloudbees.jenkins.plugins;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+import hudson.EnvVars;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.plugins.git.extensions.GitSCMExtension;
+import hudson.plugins.git.util.BuildData;
+import hudson.scm.SCM;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import jenkins.triggers.SCMTriggerItem;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jenkinsci.plugins.gitclient.Git;
+import org.jenkinsci.plugins.gitclient.GitClient;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a Git job has changes from the branch heads of its remote, listed once for all the jobs notified
+ * of the same event instead of once per job poll.
+ *
+ * The heads of a repository, for given credentials looked up from a given folder, are reused by the polls of the same
+ * event, and by the polls of other events for {@code com.cloudbees.jenkins.plugins.BitbucketRemoteHeads.ttl} seconds
+ * as long as they agree with the commit hashes of the event payload. Only jobs with a single Git SCM, a single remote, branch specifications
+ * without tags or variables, and no extension needing a workspace to poll are decided this way, the other ones are
+ * polled as usual. Setting {@code com.cloudbees.jenkins.plugins.BitbucketRemoteHeads.disabled} to {@code true} turns
+ * shared lookups off.
+ */
+final class BitbucketRemoteHeads {
+
+    static final boolean DISABLED = Boolean.getBoolean(BitbucketRemoteHeads.class.getName() + ".disabled");
+    static final long TTL = Long.getLong(BitbucketRemoteHeads.class.getName() + ".ttl", 10);
+
+    /**
+     * Latest lookup of each repository, credentials and parent of the jobs, since the same credentials id can resolve
+     * to different credentials in different folders. Guarded by itself.
+     */
+    private static final Map<String, Lookup> LOOKUPS = new LinkedHashMap<String, Lookup>();
+
+    private BitbucketRemoteHeads() {
+    }
+
+    /**
+     * @return whether a branch built by the job points to a commit not built yet, or null when the job is not
+     * eligible or the heads could not be listed, and the job must be polled
+     */
+    @CheckForNull
+    static Boolean hasChanges(Job<?, ?> job, String eventId, Collection<BitbucketRefChange> changes, TaskListener listener) {
+        if (DISABLED) {
+            return null;
+        }
+        PrintStream logger = listener.getLogger();
+        SCMTriggerItem item = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
+        if (item == null || item.getSCMs().size() != 1) {
+            return null;
+        }
+        SCM scm = item.getSCMs().iterator().next();
+        if (!(scm instanceof GitSCM) || !isEligible((GitSCM) scm, changes)) {
+            return null;
+        }
+        GitSCM git = (GitSCM) scm;
+        Run<?, ?> lastBuild = job.getLastBuild();
+        BuildData buildData = lastBuild != null ? git.getBuildData(lastBuild) : null;
+        if (buildData == null) {
+            return null;
+        }
+        UserRemoteConfig remote = git.getUserRemoteConfigs().get(0);
+        Map<String, ObjectId> heads;
+        try {
+            heads = getHeads(job, git, remote, eventId, changes, listener);
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to list the heads of " + remote.getUrl() + ", polling"));
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        boolean changed = false;
+        for (Map.Entry<String, ObjectId> head : heads.entrySet()) {
+            if (!isBuilt(git, remote, head.getKey())) {
+                continue;
+            }
+            if (buildData.hasBeenBuilt(head.getValue())) {
+                logger.println("Head of " + head.getKey() + " " + head.getValue().name() + " already built");
+            } else {
+                logger.println("Head of " + head.getKey() + " " + head.getValue().name() + " not built yet");
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isEligible(GitSCM git, Collection<BitbucketRefChange> changes) {
+        if (git.getUserRemoteConfigs().size() != 1 || git.getUserRemoteConfigs().get(0).getUrl() == null
+                || git.getUserRemoteConfigs().get(0).getUrl().contains("$")) {
+            return false;
+        }
+        for (GitSCMExtension extension : git.getExtensions()) {
+            if (extension.requiresWorkspaceForPolling()) {
+                return false;
+            }
+        }
+        if (git.getBranches().isEmpty()) {
+            return false;
+        }
+        for (BranchSpec spec : git.getBranches()) {
+            // heads only list branches
+            if (spec.getName() == null || spec.getName().contains("$") || spec.getName().contains("tags/")) {
+                return false;
+            }
+        }
+        for (BitbucketRefChange change : changes) {
+            if (!BitbucketRefChange.BRANCH.equals(change.getType())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the job builds the given head, {@code refs/heads/NAME}.
+     */
+    private static boolean isBuilt(GitSCM git, UserRemoteConfig remote, String head) {
+        String branch = head.startsWith("refs/heads/") ? head.substring("refs/heads/".length()) : head;
+        String remoteName = remote.getName() != null && remote.getName().length() > 0 ? remote.getName() : "origin";
+        for (BranchSpec spec : git.getBranches()) {
+            if (spec.matches(head) || spec.matches(remoteName + "/" + branch)
+                    || spec.matches("refs/remotes/" + remoteName + "/" + branch) || spec.matches(branch)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, ObjectId> getHeads(final Job<?, ?> job, final GitSCM git, final UserRemoteConfig remote,
+                                                  String eventId, Collection<BitbucketRefChange> changes,
+                                                  final TaskListener listener) throws IOException, InterruptedException {
+        String key = remote.getUrl() + "\n" + remote.getCredentialsId() + "\n" + job.getParent().getFullName();
+        Lookup lookup;
+        boolean owner = false;
+        synchronized (LOOKUPS) {
+            expire();
+            lookup = LOOKUPS.get(key);
+            if (lookup == null || !lookup.isValidFor(eventId, changes)) {
+                lookup = new Lookup(eventId, new Callable<Map<String, ObjectId>>() {
+                    public Map<String, ObjectId> call() throws Exception {
+                        return listHeads(job, git, remote, listener);
+                    }
+                });
+                LOOKUPS.put(key, lookup);
+                owner = true;
+            }
+        }
+        BitbucketMetrics metrics = BitbucketMetrics.get();
+        if (owner) {
+            listener.getLogger().println("Listing the heads of " + remote.getUrl());
+            metrics.remoteHeadLookups.incrementAndGet();
+            lookup.heads.run();
+        } else {
+            listener.getLogger().println("Reusing the heads of " + remote.getUrl() + " listed for event " + lookup.eventId);
+            metrics.remoteHeadReuses.incrementAndGet();
+        }
+        try {
+            return lookup.heads.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw new IOException("Failed to list the heads of " + remote.getUrl(), cause);
+        }
+    }
+
+    private static Map<String, ObjectId> listHeads(Job<?, ?> job, GitSCM git, UserRemoteConfig remote, TaskListener listener)
+            throws IOException, InterruptedException {
+        GitClient client = Git.with(listener, new EnvVars(EnvVars.masterEnvVars))
+                .in(Jenkins.getInstance().getRootDir())
+                .using(git.getGitExe(Jenkins.getInstance(), listener))
+                .getClient();
+        if (remote.getCredentialsId() != null) {
+            StandardUsernameCredentials credentials = CredentialsMatchers.firstOrNull(
+                    CredentialsProvider.lookupCredentials(StandardUsernameCredentials.class, job, ACL.SYSTEM,
+                            URIRequirementBuilder.fromUri(remote.getUrl()).build()),
+                    CredentialsMatchers.withId(remote.getCredentialsId()));
+            if (credentials != null) {
+                client.addDefaultCredentials(credentials);
+            }
+        }
+        return client.getHeadRev(remote.getUrl());
+    }
+
+    /**
+     * Drops the lookups well past the TTL. Until then they can still be reused by the polls of their own event.
+     */
+    private static void expire() {
+        for (Iterator<Lookup> it = LOOKUPS.values().iterator(); it.hasNext(); ) {
+            Lookup lookup = it.next();
+            if (lookup.getAge() > TimeUnit.SECONDS.toNanos(TTL) * 6) {
+                it.remove();
+            }
+        }
+    }
+
+    static final class Lookup {
+        private final String eventId;
+        private final long created = System.nanoTime();
+        final FutureTask<Map<String, ObjectId>> heads;
+
+        Lookup(String eventId, Callable<Map<String, ObjectId>> list) {
+            this.eventId = eventId;
+            this.heads = new FutureTask<Map<String, ObjectId>>(list);
+        }
+
+        long getAge() {
+            return System.nanoTime() - created;
+        }
+
+        /**
+         * Whether the heads can be reused for the polls of an event. The heads listed for another event are only
+         * reused when each change of the event gives the new hash of its ref, and the listed heads agree with it.
+         */
+        boolean isValidFor(String eventId, Collection<BitbucketRefChange> changes) {
+            if (heads.isDone()) {
+                try {
+                    heads.get();
+                } catch (ExecutionException e) {
+                    return false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (this.eventId != null && this.eventId.equals(eventId)) {
+                return true;
+            }
+            if (getAge() > TimeUnit.SECONDS.toNanos(TTL)) {
+                return false;
+            }
+            if (!heads.isDone() || changes.isEmpty()) {
+                // may have been listed before the event happened, or nothing to check it against
+                return false;
+            }
+            Map<String, ObjectId> listed;
+            try {
+                listed = heads.get();
+            } catch (Exception e) {
+                return false;
+            }
+            for (BitbucketRefChange change : changes) {
+                String hash = change.getNewHash();
+                if (hash == null) {
+                    return false;
+                }
+                String prefix = BitbucketRefChange.TAG.equals(change.getType()) ? "refs/tags/" : "refs/heads/";
+                ObjectId head = listed.get(prefix + change.getName());
+                if (head == null || !head.name().equalsIgnoreCase(hash)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
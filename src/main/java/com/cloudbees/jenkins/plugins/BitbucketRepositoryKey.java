@@ -0,0 +1,112 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.mercurial.MercurialSCM;
+import hudson.scm.SCM;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+
+import javax.annotation.CheckForNull;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Canonical keys of repositories, so that matching a pushed repository against the SCM of a job is a string
+ * comparison.
+ *
+ * Git keys follow {@code GitStatus.looselyMatches}: scheme, credentials and port are ignored, so the HTTPS and SSH
+ * URLs of a repository share a key, and the leading slash, trailing slash and {@code .git} suffix of the path are
+ * dropped. Mercurial keys keep the exact host, path and query of the source. Both are prefixed with the SCM type,
+ * so a key only matches a remote of the same kind.
+ *
+ * The keys of an SCM configuration are computed once and cached until the configuration is replaced.
+ */
+final class BitbucketRepositoryKey {
+
+    private static final Map<SCM, Set<String>> CACHE = new WeakHashMap<SCM, Set<String>>();
+
+    private BitbucketRepositoryKey() {
+    }
+
+    /**
+     * The keys of the repositories of an SCM configuration, empty for unsupported SCMs.
+     */
+    static Set<String> of(SCM scm) {
+        synchronized (CACHE) {
+            Set<String> keys = CACHE.get(scm);
+            if (keys == null) {
+                keys = compute(scm);
+                CACHE.put(scm, keys);
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * The keys a pushed repository may be configured as, one per supported SCM type.
+     */
+    static Set<String> ofRemote(URIish remote) {
+        Set<String> keys = new HashSet<String>();
+        keys.add(git(remote));
+        String hg = hg(remote.toString());
+        if (hg != null) {
+            keys.add(hg);
+        } else {
+            LOGGER.log(Level.WARNING, "Could not parse repository uri: {0}", remote);
+        }
+        return keys;
+    }
+
+    static String git(URIish uri) {
+        String path = uri.getPath();
+        if (path == null) path = "";
+        if (path.startsWith("/")) path = path.substring(1);
+        if (path.endsWith("/")) path = path.substring(0, path.length() - 1);
+        if (path.endsWith(".git")) path = path.substring(0, path.length() - 4);
+        return "git:" + (uri.getHost() == null ? "" : "//" + uri.getHost()) + "/" + path;
+    }
+
+    /**
+     * The key of a Mercurial source, or null if it is not a valid URI.
+     */
+    @CheckForNull
+    static String hg(String source) {
+        try {
+            URI uri = new URI(source);
+            return "hg:" + (uri.getHost() == null ? "" : "//" + uri.getHost())
+                    + (uri.getPath() == null ? "" : "/" + uri.getPath())
+                    + (uri.getQuery() == null ? "" : "?" + uri.getQuery());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static Set<String> compute(SCM scm) {
+        Set<String> keys = new HashSet<String>();
+        if (scm instanceof GitSCM) {
+            for (RemoteConfig remoteConfig : ((GitSCM) scm).getRepositories()) {
+                for (URIish uri : remoteConfig.getURIs()) {
+                    keys.add(git(uri));
+                }
+            }
+        } else if (scm instanceof MercurialSCM) {
+            String source = ((MercurialSCM) scm).getSource();
+            String key = source == null ? null : hg(source);
+            if (key != null) {
+                keys.add(key);
+            } else {
+                LOGGER.log(Level.WARNING, "Could not parse jobSource uri: {0}", source);
+            }
+        }
+        return Collections.unmodifiableSet(keys);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketRepositoryKey.class.getName());
+}
@@ -2,6 +2,7 @@ package com.cloudbees.jenkins.plugins.extensions.dsl;
 
 import com.cloudbees.jenkins.plugins.BitBucketTrigger;
 import hudson.Extension;
+import hudson.Util;
 import javaposse.jobdsl.dsl.helpers.triggers.TriggerContext;
 import javaposse.jobdsl.plugin.ContextExtensionPoint;
 import javaposse.jobdsl.plugin.DslExtensionMethod;
@@ -10,8 +11,17 @@ import javaposse.jobdsl.plugin.DslExtensionMethod;
 public class BitbucketHookJobDslExtension extends ContextExtensionPoint {
     @DslExtensionMethod(context = TriggerContext.class)
     public Object bitbucketPush(Runnable closure) {
-        return new BitBucketTrigger();
+        BitbucketPushTriggerContext context = new BitbucketPushTriggerContext();
+        if (closure != null) {
+            executeInContext(closure, context);
+        }
+        BitBucketTrigger trigger = new BitBucketTrigger();
+        trigger.setCoalesceWindow(context.coalesceWindow);
+        trigger.setUsePayloadHashes(context.usePayloadHashes);
+        trigger.setBuildPullRequests(context.buildPullRequests);
+        trigger.setSkipPayloadEnvVar(context.skipPayloadEnvVar);
+        trigger.setIncludedPaths(Util.join(context.includedPaths, "\n"));
+        trigger.setExcludedPaths(Util.join(context.excludedPaths, "\n"));
+        return trigger;
     }
 }
-
-
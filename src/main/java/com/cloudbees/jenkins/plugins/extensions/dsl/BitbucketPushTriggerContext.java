@@ -0,0 +1,73 @@
+package com.cloudbees.jenkins.plugins.extensions.dsl;
+
+import javaposse.jobdsl.dsl.Context;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Options of the {@code bitbucketPush} trigger DSL method.
+ */
+public class BitbucketPushTriggerContext implements Context {
+    int coalesceWindow;
+    boolean usePayloadHashes;
+    boolean buildPullRequests;
+    boolean skipPayloadEnvVar;
+    List<String> includedPaths = new ArrayList<String>();
+    List<String> excludedPaths = new ArrayList<String>();
+
+    /**
+     * Seconds to wait after a push before polling, pushes arriving in the meantime share the same poll.
+     */
+    public void coalesceWindow(int seconds) {
+        this.coalesceWindow = seconds;
+    }
+
+    /**
+     * Decides from the commit hashes of the payload whether to build, instead of polling.
+     */
+    public void usePayloadHashes(boolean usePayloadHashes) {
+        this.usePayloadHashes = usePayloadHashes;
+    }
+
+    public void usePayloadHashes() {
+        usePayloadHashes(true);
+    }
+
+    /**
+     * Builds pull requests when they are created, updated or merged.
+     */
+    public void buildPullRequests(boolean buildPullRequests) {
+        this.buildPullRequests = buildPullRequests;
+    }
+
+    public void buildPullRequests() {
+        buildPullRequests(true);
+    }
+
+    /**
+     * Leaves the payload out of the build environment, builds read it from $BITBUCKET_PAYLOAD_FILE.
+     */
+    public void skipPayloadEnvVar(boolean skipPayloadEnvVar) {
+        this.skipPayloadEnvVar = skipPayloadEnvVar;
+    }
+
+    public void skipPayloadEnvVar() {
+        skipPayloadEnvVar(true);
+    }
+
+    /**
+     * Ant style patterns of the paths a push must change to trigger the job.
+     */
+    public void includedPaths(String... patterns) {
+        includedPaths.addAll(Arrays.asList(patterns));
+    }
+
+    /**
+     * Ant style patterns of the paths whose changes alone don't trigger the job.
+     */
+    public void excludedPaths(String... patterns) {
+        excludedPaths.addAll(Arrays.asList(patterns));
+    }
+}
@@ -0,0 +1,127 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Publisher;
+import hudson.tasks.Recorder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class BitBucketPayloadTest {
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void shouldExposePayloadFileAndEventFields() throws Exception {
+        BitbucketEvent event = new BitbucketEvent("alice", "https://bitbucket.org/owner/repo", "git", "{\"push\":{}}",
+                Collections.singletonList(new BitbucketRefChange(BitbucketRefChange.BRANCH, "master", "abc123")));
+        Capture capture = new Capture();
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getBuildersList().add(capture);
+
+        jenkins.assertBuildStatusSuccess(project.scheduleBuild2(0, new Cause.UserIdCause(),
+                new BitBucketPayload(event.getPayload(), event, true)));
+
+        assertEquals("abc123", capture.env.get("BITBUCKET_COMMIT"));
+        assertEquals("master", capture.env.get("BITBUCKET_BRANCH"));
+        assertEquals("https://bitbucket.org/owner/repo", capture.env.get("BITBUCKET_REPOSITORY"));
+        assertEquals("alice", capture.env.get("BITBUCKET_ACTOR"));
+        assertNull(capture.env.get("BITBUCKET_PAYLOAD"));
+        assertEquals("{\"push\":{}}", capture.payload);
+        assertFalse(new File(capture.env.get("BITBUCKET_PAYLOAD_FILE")).exists());
+    }
+
+    @Test
+    public void shouldKeepPayloadVariableByDefault() throws Exception {
+        Capture capture = new Capture();
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getBuildersList().add(capture);
+
+        jenkins.assertBuildStatusSuccess(project.scheduleBuild2(0, new Cause.UserIdCause(),
+                new BitBucketPayload("{\"push\":{}}")));
+
+        assertEquals("{\"push\":{}}", capture.env.get("BITBUCKET_PAYLOAD"));
+        assertNull(capture.env.get("BITBUCKET_COMMIT"));
+    }
+
+    @Test
+    public void shouldKeepPayloadFileForPublishers() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        CapturePublisher publisher = new CapturePublisher();
+        project.getPublishersList().add(publisher);
+
+        FreeStyleBuild build = jenkins.assertBuildStatusSuccess(project.scheduleBuild2(0, new Cause.UserIdCause(),
+                new BitBucketPayload("{\"push\":{}}")));
+
+        assertEquals("{\"push\":{}}", publisher.payload);
+        assertFalse(build.getWorkspace().getParent().child(build.getWorkspace().getName() + "@tmp")
+                .child(BitBucketPayloadFile.FILE_NAME).exists());
+    }
+
+    public static class CapturePublisher extends Recorder {
+        private transient String payload;
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                throws InterruptedException, IOException {
+            String file = build.getEnvironment(listener).get("BITBUCKET_PAYLOAD_FILE");
+            if (file != null) {
+                payload = new FilePath(launcher.getChannel(), file).readToString();
+            }
+            return true;
+        }
+
+        public BuildStepMonitor getRequiredMonitorService() {
+            return BuildStepMonitor.NONE;
+        }
+
+        @TestExtension("shouldKeepPayloadFileForPublishers")
+        public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+            @Override
+            public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+                return true;
+            }
+
+            @Override
+            public String getDisplayName() {
+                return "Capture the BitBucket payload";
+            }
+        }
+    }
+
+    private static class Capture extends TestBuilder {
+        private EnvVars env;
+        private String payload;
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                throws InterruptedException, IOException {
+            env = build.getEnvironment(listener);
+            String file = env.get("BITBUCKET_PAYLOAD_FILE");
+            if (file != null) {
+                payload = new FilePath(launcher.getChannel(), file).readToString();
+            }
+            return true;
+        }
+    }
+}
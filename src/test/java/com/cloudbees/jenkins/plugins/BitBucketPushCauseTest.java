@@ -0,0 +1,82 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class BitBucketPushCauseTest {
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void keepsTheLastLinesOfTheLog() {
+        assertEquals("b\nc\nd", BitBucketPushCause.summarize("a\n\nb\r\nc\n  \nd\n"));
+        assertEquals("", BitBucketPushCause.summarize(null));
+    }
+
+    @Test
+    public void archivesThePollingLogInTheBuild() throws Exception {
+        File log = tmp.newFile("bitbucket-polling.log");
+        FileUtils.writeStringToFile(log, "Started on 1 Jan\nPolling SCM changes\nChanges found\n");
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+
+        FreeStyleBuild build = jenkins.assertBuildStatusSuccess(project.scheduleBuild2(0, new BitBucketPushCause(log, "alice")));
+
+        BitBucketPushCause cause = build.getCause(BitBucketPushCause.class);
+        assertEquals("Started on 1 Jan\nPolling SCM changes\nChanges found", cause.getSummary());
+        assertFalse(new File(build.getRootDir(), "polling.log").exists());
+        BitBucketPollingLogAction action = build.getAction(BitBucketPollingLogAction.class);
+        assertNotNull(action);
+        StringWriter text = new StringWriter();
+        action.getLogText().writeLogTo(0, text);
+        assertTrue(text.toString().contains("Polling SCM changes"));
+    }
+
+    @Test
+    public void keepsThePollingLogRotatedWhileQueued() throws Exception {
+        File log = tmp.newFile("bitbucket-polling.log");
+        FileUtils.writeStringToFile(log, "Polling SCM changes\nChanges found\n");
+        BitBucketPushCause cause = new BitBucketPushCause(log, "alice");
+        log.delete();
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+
+        FreeStyleBuild build = jenkins.assertBuildStatusSuccess(project.scheduleBuild2(0, cause));
+
+        assertTrue(build.getCause(BitBucketPushCause.class).isPollingLogArchived());
+        assertNotNull(build.getAction(BitBucketPollingLogAction.class));
+        assertEquals(0, new File(tmp.getRoot(), BitBucketPollingLogAction.PENDING_DIR).list().length);
+        jenkins.createWebClient().getPage(build).getAnchorByHref("bitbucketPollingLog/");
+    }
+
+    @Test
+    public void tellsWhenThePollingLogIsLost() throws Exception {
+        File log = tmp.newFile("bitbucket-polling.log");
+        FileUtils.writeStringToFile(log, "Changes found\n");
+        BitBucketPushCause cause = new BitBucketPushCause(log, "alice");
+        FileUtils.deleteDirectory(new File(tmp.getRoot(), BitBucketPollingLogAction.PENDING_DIR));
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+
+        FreeStyleBuild build = jenkins.assertBuildStatusSuccess(project.scheduleBuild2(0, cause));
+
+        BitBucketPushCause recorded = build.getCause(BitBucketPushCause.class);
+        assertTrue(recorded.isPollingLogLost());
+        assertFalse(recorded.isPollingLogArchived());
+        assertEquals("Changes found", recorded.getSummary());
+        assertTrue(jenkins.createWebClient().getPage(build).asText().contains("The full polling log is no longer available."));
+    }
+}
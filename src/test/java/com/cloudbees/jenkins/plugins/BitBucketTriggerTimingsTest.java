@@ -0,0 +1,47 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import net.sf.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class BitBucketTriggerTimingsTest {
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void onlyListsTheStagesTheBuildWentThrough() {
+        BitBucketTriggerTimings timings = new BitBucketTriggerTimings(1000, 1200, -1, -1, 1500);
+
+        Map<String, Long> stages = timings.getStages();
+        assertEquals(Arrays.asList(BitBucketTriggerTimings.ROUTING), Arrays.asList(stages.keySet().toArray()));
+        assertEquals(200L, (long) stages.get(BitBucketTriggerTimings.ROUTING));
+    }
+
+    @Test
+    public void recordsTheStagesOnceTheBuildStarts() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        long now = System.currentTimeMillis();
+        BitBucketTriggerTimings timings = new BitBucketTriggerTimings(now - 4000, now - 3000, now - 2500, now - 1000, now);
+
+        FreeStyleBuild build = jenkins.assertBuildStatusSuccess(project.scheduleBuild2(0, new Cause.UserIdCause(), timings));
+
+        BitBucketTriggerTimings recorded = build.getAction(BitBucketTriggerTimings.class);
+        assertTrue(recorded.getStarted() >= now);
+        assertEquals(Arrays.asList(BitBucketTriggerTimings.STAGES), Arrays.asList(recorded.getStages().keySet().toArray()));
+        assertEquals(1500L, (long) recorded.getStages().get(BitBucketTriggerTimings.POLL));
+        JSONObject latency = BitbucketMetrics.get().triggerLatencyToJSON(project.getFullName());
+        assertNotNull(latency);
+        assertEquals(1, latency.getJSONObject(BitBucketTriggerTimings.TOTAL).getLong("count"));
+    }
+}
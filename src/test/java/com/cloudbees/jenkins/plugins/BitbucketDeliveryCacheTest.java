@@ -0,0 +1,56 @@
+package com.cloudbees.jenkins.plugins;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BitbucketDeliveryCacheTest {
+
+    @Test
+    public void shouldDetectRetriedDelivery() {
+        BitbucketDeliveryCache cache = new BitbucketDeliveryCache(10, TimeUnit.HOURS.toNanos(1));
+        long hits = BitbucketMetrics.get().getDuplicateDeliveries();
+
+        assertFalse(cache.isDuplicate("uuid:1"));
+        assertTrue(cache.isDuplicate("uuid:1"));
+        assertFalse(cache.isDuplicate("uuid:2"));
+        assertEquals(hits + 1, BitbucketMetrics.get().getDuplicateDeliveries());
+    }
+
+    @Test
+    public void shouldForgetOldestAndExpiredDeliveries() throws Exception {
+        BitbucketDeliveryCache cache = new BitbucketDeliveryCache(2, TimeUnit.HOURS.toNanos(1));
+        cache.isDuplicate("uuid:1");
+        cache.isDuplicate("uuid:2");
+        cache.isDuplicate("uuid:3");
+        assertFalse(cache.isDuplicate("uuid:1"));
+
+        cache = new BitbucketDeliveryCache(10, TimeUnit.MILLISECONDS.toNanos(1));
+        cache.isDuplicate("uuid:1");
+        Thread.sleep(10);
+        assertFalse(cache.isDuplicate("uuid:1"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void shouldForgetRejectedDelivery() {
+        BitbucketDeliveryCache cache = new BitbucketDeliveryCache(10, TimeUnit.HOURS.toNanos(1));
+        cache.isDuplicate("uuid:1");
+        cache.forget("uuid:1");
+        assertFalse(cache.isDuplicate("uuid:1"));
+    }
+
+    @Test
+    public void shouldHashBodyWithoutRequestUuid() throws Exception {
+        byte[] body = "{\"push\": {}}".getBytes("UTF-8");
+
+        assertEquals("uuid:abc", BitbucketDeliveryCache.keyOf("abc", "repo:push", body));
+        assertEquals(BitbucketDeliveryCache.keyOf(null, "repo:push", body), BitbucketDeliveryCache.keyOf("", "repo:push", body));
+        assertFalse(BitbucketDeliveryCache.keyOf(null, "repo:push", body)
+                .equals(BitbucketDeliveryCache.keyOf(null, "pullrequest:updated", body)));
+    }
+}
@@ -0,0 +1,96 @@
+package com.cloudbees.jenkins.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+
+import java.io.StringReader;
+import java.util.List;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BitbucketEventBatchTest {
+
+    private static final String REPO = "https://bitbucket.org/test_user/test_repo";
+
+    private BitbucketEventBatch batch;
+
+    @Before
+    public void setUp() {
+        batch = new BitbucketEventBatch(new BitbucketPayloadProcessor(mock(BitbucketJobProbe.class)), new BitbucketDeliveryCache(), 5);
+    }
+
+    @Test
+    public void shouldKeepNewestChangePerReference() throws Exception {
+        batch.read(new StringReader(push(REPO, "master", "a1") + "\n"
+                + push(REPO, "master", "b2") + "\n"
+                + push(REPO, "feature", "c3") + "\n"
+                + push("https://bitbucket.org/test_user/other_repo", "master", "d4") + "\n"));
+
+        List<BitbucketEventBatch.Item> items = batch.getItems();
+        assertEquals(BitbucketEventBatch.SUPERSEDED, items.get(0).getStatus());
+        assertNull(items.get(0).getEvent());
+        assertEquals(BitbucketEventBatch.ACCEPTED, items.get(1).getStatus());
+        assertEquals("b2", items.get(1).getEvent().getChanges().get(0).getNewHash());
+        assertEquals(BitbucketEventBatch.ACCEPTED, items.get(2).getStatus());
+        assertEquals(BitbucketEventBatch.ACCEPTED, items.get(3).getStatus());
+        assertEquals(3, batch.getAccepted().size());
+    }
+
+    @Test
+    public void shouldReportEachLine() throws Exception {
+        batch.read(new StringReader("{\"headers\": {\"User-Agent\": \"Bitbucket-Webhooks/2.0\", \"X-Event-Key\": \"repo:fork\"}, \"body\": {}}\n"
+                + "\n"
+                + "not json\n"
+                + push(REPO, "master", "a1") + "\n"
+                + push(REPO, "master", "b2") + "\n"
+                + push(REPO, "master", "c3") + "\n"
+                + push(REPO, "master", "d4") + "\n"));
+
+        JSONObject result = batch.toJSON();
+        assertEquals(1, result.getInt("ignored"));
+        assertEquals(1, result.getInt("invalid"));
+        assertEquals(2, result.getInt("superseded"));
+        assertEquals(1, result.getInt("accepted"));
+        assertEquals(1, result.getInt("rejected"));
+        assertEquals(3, result.getJSONArray("events").getJSONObject(1).getInt("line"));
+        assertEquals(BitbucketEventBatch.ACCEPTED, result.getJSONArray("events").getJSONObject(4).getString("status"));
+    }
+
+    @Test
+    public void shouldSkipDeliveriesAlreadyReceived() throws Exception {
+        BitbucketDeliveryCache deliveries = new BitbucketDeliveryCache();
+        String line = push(REPO, "master", "a1");
+        new BitbucketEventBatch(new BitbucketPayloadProcessor(mock(BitbucketJobProbe.class)), deliveries, 5)
+                .read(new StringReader(line + "\n"));
+
+        BitbucketEventBatch replay = new BitbucketEventBatch(new BitbucketPayloadProcessor(mock(BitbucketJobProbe.class)), deliveries, 5);
+        replay.read(new StringReader(line + "\n" + push(REPO, "feature", "b2") + "\n"));
+
+        assertEquals(BitbucketEventBatch.DUPLICATE, replay.getItems().get(0).getStatus());
+        assertEquals(BitbucketEventBatch.ACCEPTED, replay.getItems().get(1).getStatus());
+    }
+
+    private static String push(String url, String branch, String hash) {
+        JSONObject body = new JSONObject()
+            .element("actor", new JSONObject().element("username", "test_user"))
+            .element("repository", new JSONObject()
+                .element("scm", "git")
+                .element("links", new JSONObject().element("html", new JSONObject().element("href", url))))
+            .element("push", new JSONObject().element("changes", new JSONArray()
+                .element(new JSONObject().element("new", new JSONObject()
+                    .element("type", "branch")
+                    .element("name", branch)
+                    .element("target", new JSONObject().element("hash", hash))))));
+        return new JSONObject()
+            .element("headers", new JSONObject()
+                .element("user-agent", "Bitbucket-Webhooks/2.0")
+                .element("X-Event-Key", "repo:push"))
+            .element("body", body)
+            .toString();
+    }
+}
@@ -0,0 +1,96 @@
+package com.cloudbees.jenkins.plugins;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BitbucketEventJournalTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void shouldRecoverPendingDeliveries() throws Exception {
+        File dir = tmp.newFolder("journal");
+        BitbucketEventJournal journal = new BitbucketEventJournal(dir, 4096, BitbucketEventJournal.Fsync.ALWAYS);
+        assertTrue(journal.recover().isEmpty());
+        long first = journal.append(delivery("first"));
+        long second = journal.append(delivery("second"));
+        long third = journal.append(delivery("third"));
+        journal.complete(second);
+
+        List<BitbucketEventJournal.Entry> recovered = new BitbucketEventJournal(dir, 4096, BitbucketEventJournal.Fsync.ALWAYS).recover();
+
+        assertEquals(2, recovered.size());
+        assertEquals(first, recovered.get(0).getId());
+        assertEquals("{\"push\": \"first\"}", recovered.get(0).getDelivery().getJson());
+        assertEquals("repo:push", recovered.get(0).getDelivery().getEventKey());
+        assertEquals(third, recovered.get(1).getId());
+    }
+
+    @Test
+    public void shouldNotReplayCompletedDeliveriesAgain() throws Exception {
+        File dir = tmp.newFolder("journal");
+        BitbucketEventJournal journal = new BitbucketEventJournal(dir, 4096, BitbucketEventJournal.Fsync.ALWAYS);
+        journal.append(delivery("first"));
+
+        BitbucketEventJournal restarted = new BitbucketEventJournal(dir, 4096, BitbucketEventJournal.Fsync.ALWAYS);
+        List<BitbucketEventJournal.Entry> recovered = restarted.recover();
+        assertEquals(1, recovered.size());
+        restarted.complete(recovered.get(0).getId());
+        long next = restarted.append(delivery("second"));
+
+        recovered = new BitbucketEventJournal(dir, 4096, BitbucketEventJournal.Fsync.ALWAYS).recover();
+        assertEquals(1, recovered.size());
+        assertEquals(next, recovered.get(0).getId());
+    }
+
+    @Test
+    public void shouldDeleteCompletedSegments() throws Exception {
+        File dir = tmp.newFolder("journal");
+        BitbucketEventJournal journal = new BitbucketEventJournal(dir, 1024, BitbucketEventJournal.Fsync.NEVER);
+        long kept = journal.append(delivery("kept"));
+        for (int i = 0; i < 100; i++) {
+            journal.complete(journal.append(delivery("event " + i)));
+        }
+
+        assertEquals(1, journal.getPending());
+        assertTrue(journal.getSegments() <= 2);
+        assertTrue(dir.list().length <= 2);
+        journal.flush();
+        List<BitbucketEventJournal.Entry> recovered = new BitbucketEventJournal(dir, 1024, BitbucketEventJournal.Fsync.NEVER).recover();
+        assertEquals(1, recovered.size());
+        assertEquals(kept, recovered.get(0).getId());
+    }
+
+    @Test
+    public void shouldStopAtTornRecord() throws Exception {
+        File dir = tmp.newFolder("journal");
+        BitbucketEventJournal journal = new BitbucketEventJournal(dir, 4096, BitbucketEventJournal.Fsync.ALWAYS);
+        journal.append(delivery("first"));
+        journal.append(delivery("second"));
+
+        // the first record takes 102 bytes, break the second one
+        RandomAccessFile segment = new RandomAccessFile(dir.listFiles()[0], "rw");
+        try {
+            segment.seek(120);
+            segment.write(new byte[]{1, 2, 3});
+        } finally {
+            segment.close();
+        }
+
+        assertEquals(1, new BitbucketEventJournal(dir, 4096, BitbucketEventJournal.Fsync.ALWAYS).recover().size());
+    }
+
+    private static BitbucketHookDelivery delivery(String push) throws Exception {
+        return new BitbucketHookDelivery("Bitbucket-Webhooks/2.0", "repo:push", "application/json", null,
+                ("{\"push\": \"" + push + "\"}").getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,128 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.model.FreeStyleProject;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.SubmoduleConfig;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.plugins.git.extensions.GitSCMExtension;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BitbucketEventTraceTest {
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void dryRunRecordsDecisionsWithoutTriggering() throws Exception {
+        FreeStyleProject master = jenkins.createFreeStyleProject("master");
+        master.setScm(git("master"));
+        BitBucketTrigger trigger = new BitBucketTrigger();
+        master.addTrigger(trigger);
+        FreeStyleProject release = jenkins.createFreeStyleProject("release");
+        release.setScm(git("release"));
+        release.addTrigger(new BitBucketTrigger());
+
+        JSONObject payload = new JSONObject()
+                .element("canon_url", "https://bitbucket.org")
+                .element("user", "alice")
+                .element("repository", new JSONObject()
+                        .element("scm", "git")
+                        .element("absolute_url", "/owner/repo/"))
+                .element("commits", new JSONArray().element(new JSONObject().element("branch", "master")));
+
+        BitbucketEventTrace trace = new BitbucketPayloadProcessor().dryRun(payload, payload.toString(), null, null, 1000);
+
+        JSONObject json = trace.toJSON(true);
+        assertEquals(true, json.getBoolean("dryRun"));
+        assertEquals("post", json.getString("type"));
+        assertEquals(2, json.getInt("candidates"));
+        assertEquals(1, json.getInt("matched"));
+        assertEquals(0, json.getInt("pollsQueued"));
+        JSONObject masterJob = job(json, "master");
+        assertEquals(BitbucketEventTrace.TRIGGERED, masterJob.getString("status"));
+        JSONObject releaseJob = job(json, "release");
+        assertFalse(releaseJob.has("status"));
+        assertEquals(1, releaseJob.getJSONArray("decisions").size());
+        assertTrue(releaseJob.getJSONArray("decisions").getString(0).endsWith(": doesn't build any of the pushed references"));
+        assertNull(BitbucketEventTraces.get().getTrace(trace.getEventId()));
+        assertFalse(jenkins.jenkins.getQueue().contains(master));
+    }
+
+    @Test
+    public void doesNotBuildPullRequestsFromForks() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("pr");
+        project.setScm(git("master"));
+        BitBucketTrigger trigger = new BitBucketTrigger();
+        trigger.setBuildPullRequests(true);
+        project.addTrigger(trigger);
+        trigger.start(project, true);
+        BitbucketPullRequest pullRequest = new BitbucketPullRequest(BitbucketPullRequest.CREATED, "7", null, null,
+                "fork_user/repo", "feature", "d3adb33f", "owner/repo", "master", "c0ffee00", null);
+        BitbucketEvent event = new BitbucketEvent("alice", "https://bitbucket.org/owner/repo", "git", "{}", pullRequest);
+
+        trigger.onPost(event);
+
+        assertFalse(jenkins.jenkins.getQueue().contains(project));
+        assertEquals(BitbucketEventTrace.NO_COMMIT_TO_BUILD, job(event.getTrace().toJSON(true), "pr").getString("status"));
+    }
+
+    @Test
+    public void onlyBuildsPullRequestsOfGitJobs() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("pr");
+        BitBucketTrigger trigger = new BitBucketTrigger();
+        trigger.setBuildPullRequests(true);
+        project.addTrigger(trigger);
+        trigger.start(project, true);
+        BitbucketPullRequest pullRequest = new BitbucketPullRequest(BitbucketPullRequest.CREATED, "7", null, null,
+                "owner/repo", "feature", "d3adb33f", "owner/repo", "master", "c0ffee00", null);
+        BitbucketEvent event = new BitbucketEvent("alice", "https://bitbucket.org/owner/repo", "hg", "{}", pullRequest);
+
+        trigger.onPost(event);
+
+        assertFalse(jenkins.jenkins.getQueue().contains(project));
+        assertEquals(BitbucketEventTrace.NOT_GIT, job(event.getTrace().toJSON(true), "pr").getString("status"));
+    }
+
+    @Test
+    public void keepsTheMostRecentTraces() {
+        BitbucketEventTraces traces = new BitbucketEventTraces(2);
+        BitbucketEventTrace first = new BitbucketEventTrace("1");
+        BitbucketEventTrace second = new BitbucketEventTrace("2");
+        BitbucketEventTrace third = new BitbucketEventTrace("3");
+        traces.add(first);
+        traces.add(second);
+        traces.add(third);
+
+        assertEquals(2, traces.getRecent().size());
+        assertSame(third, traces.getRecent().get(0));
+        assertNull(traces.getTrace("1"));
+        assertSame(second, traces.getTrace("2"));
+    }
+
+    private static JSONObject job(JSONObject trace, String name) {
+        for (Object job : trace.getJSONArray("jobs")) {
+            if (name.equals(((JSONObject) job).getString("job"))) {
+                return (JSONObject) job;
+            }
+        }
+        throw new AssertionError("no trace of " + name);
+    }
+
+    private static GitSCM git(String branch) {
+        return new GitSCM(Collections.singletonList(new UserRemoteConfig("https://bitbucket.org/owner/repo.git", null, null, null)),
+                Collections.singletonList(new BranchSpec("*/" + branch)), false, Collections.<SubmoduleConfig>emptyList(),
+                null, null, Collections.<GitSCMExtension>emptyList());
+    }
+}
@@ -0,0 +1,53 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.model.FreeStyleProject;
+import hudson.plugins.git.GitSCM;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BitbucketJobIndexTest {
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void shouldIndexJobsWithBitbucketTriggerByRemote() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("indexed");
+        project.setScm(new GitSCM("git@bitbucket.org:test_user/test_repo.git"));
+        project.addTrigger(new BitBucketTrigger());
+
+        FreeStyleProject other = jenkins.createFreeStyleProject("not-triggered");
+        other.setScm(new GitSCM("git@bitbucket.org:test_user/test_repo.git"));
+
+        BitbucketJobIndex index = BitbucketJobIndex.get();
+        index.rebuild();
+
+        assertTrue(index.isReady());
+        assertEquals(Collections.singleton("indexed"),
+                index.getCandidates(new URIish("https://bitbucket.org/test_user/test_repo")));
+        assertTrue(index.getCandidates(new URIish("https://bitbucket.org/test_user/other_repo")).isEmpty());
+    }
+
+    @Test
+    public void shouldFollowRenameAndDelete() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("before");
+        project.setScm(new GitSCM("https://bitbucket.org/test_user/test_repo"));
+        project.addTrigger(new BitBucketTrigger());
+
+        BitbucketJobIndex index = BitbucketJobIndex.get();
+        URIish remote = new URIish("https://bitbucket.org/test_user/test_repo.git");
+        assertEquals(Collections.singleton("before"), index.getCandidates(remote));
+
+        project.renameTo("after");
+        assertEquals(Collections.singleton("after"), index.getCandidates(remote));
+
+        project.delete();
+        assertTrue(index.getCandidates(remote).isEmpty());
+    }
+}
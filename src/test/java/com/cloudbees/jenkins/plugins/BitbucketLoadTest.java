@@ -0,0 +1,333 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.RootAction;
+import hudson.model.queue.QueueListener;
+import hudson.plugins.git.GitSCM;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Fires generated Webhook 2.0 and POST service payloads at {@code bitbucket-hook/} of a local Jenkins holding many
+ * jobs with a {@link BitBucketTrigger}, their repositories being local Git repositories, and reports the throughput,
+ * the latency from the first push to a repository to its jobs entering the build queue and the growth of the queues.
+ * Jenkins has no executor, so queued builds never start and the later pushes of a job are folded into its queued
+ * build: only the first push of each job is measured.
+ *
+ * Only runs with {@code -Dbitbucket.loadtest=true}, tuned with the {@code bitbucket.loadtest.jobs},
+ * {@code .repositories}, {@code .rate} (hooks per second), {@code .duration} (seconds), {@code .legacyRatio} and
+ * {@code .senders} system properties. A summary of the report is logged, and the whole report is written to
+ * {@code target/bitbucket-loadtest.json}.
+ */
+public class BitbucketLoadTest {
+
+    private static final int JOBS = Integer.getInteger("bitbucket.loadtest.jobs", 1000);
+    private static final int REPOSITORIES = Integer.getInteger("bitbucket.loadtest.repositories", 100);
+    private static final int RATE = Integer.getInteger("bitbucket.loadtest.rate", 50);
+    private static final int DURATION = Integer.getInteger("bitbucket.loadtest.duration", 30);
+    private static final double LEGACY_RATIO = Double.parseDouble(System.getProperty("bitbucket.loadtest.legacyRatio", "0.2"));
+    private static final int SENDERS = Integer.getInteger("bitbucket.loadtest.senders", 16);
+
+    /**
+     * Send times of the pushes to each repository, in nanoseconds.
+     */
+    private static final Map<String, ConcurrentSkipListSet<Long>> PUSHES = new ConcurrentHashMap<String, ConcurrentSkipListSet<Long>>();
+    /**
+     * Repository of each job.
+     */
+    private static final Map<String, String> REPOSITORY_OF_JOB = new ConcurrentHashMap<String, String>();
+    private static final Map<String, Boolean> QUEUED = new ConcurrentHashMap<String, Boolean>();
+    private static final BitbucketMetrics.Histogram FIRST_PUSH_TO_QUEUE = new BitbucketMetrics.Histogram();
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void throughputAndLatency() throws Exception {
+        assumeTrue(Boolean.getBoolean("bitbucket.loadtest"));
+        jenkins.timeout = 0;
+        // builds stay in the queue, so the queue shows the jobs triggered
+        jenkins.jenkins.setNumExecutors(0);
+
+        final List<Repository> repositories = new ArrayList<Repository>();
+        for (int i = 0; i < REPOSITORIES; i++) {
+            repositories.add(new Repository(new File(tmp.getRoot(), "loadtest/repo-" + i)));
+        }
+        for (int i = 0; i < JOBS; i++) {
+            Repository repository = repositories.get(i % REPOSITORIES);
+            FreeStyleProject project = jenkins.createFreeStyleProject("job-" + i);
+            project.setScm(new GitSCM(repository.url));
+            project.addTrigger(new BitBucketTrigger());
+            REPOSITORY_OF_JOB.put(project.getFullName(), repository.url);
+        }
+        BitbucketHookReceiver receiver = jenkins.jenkins.getExtensionList(RootAction.class).get(BitbucketHookReceiver.class);
+        BitbucketPollingExecutor executor = jenkins.jenkins.getDescriptorByType(BitBucketTrigger.DescriptorImpl.class).getExecutor();
+        final URL hook = new URL(jenkins.getURL(), BitbucketHookReceiver.BITBUCKET_HOOK_URL + "/");
+
+        final BitbucketMetrics.Histogram response = new BitbucketMetrics.Histogram();
+        final ConcurrentMap<Integer, AtomicInteger> statuses = new ConcurrentHashMap<Integer, AtomicInteger>();
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        JSONArray samples = new JSONArray();
+
+        final ExecutorService senders = Executors.newFixedThreadPool(SENDERS);
+        ScheduledExecutorService generator = Executors.newSingleThreadScheduledExecutor();
+        final Random random = new Random(42);
+        long start = System.nanoTime();
+        generator.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                final Repository repository = repositories.get(random.nextInt(repositories.size()));
+                final boolean legacy = random.nextDouble() < LEGACY_RATIO;
+                senders.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            int status = repository.push(hook, legacy, response);
+                            statuses.putIfAbsent(status, new AtomicInteger());
+                            statuses.get(status).incrementAndGet();
+                            sent.incrementAndGet();
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                });
+            }
+        }, 0, TimeUnit.SECONDS.toNanos(1) / RATE, TimeUnit.NANOSECONDS);
+
+        long sendEnd = start + TimeUnit.SECONDS.toNanos(DURATION);
+        while (System.nanoTime() < sendEnd) {
+            Thread.sleep(1000);
+            samples.add(sample(start, receiver, executor));
+        }
+        generator.shutdown();
+        senders.shutdown();
+        senders.awaitTermination(1, TimeUnit.MINUTES);
+        long sentDone = System.nanoTime();
+
+        // drain the hook queue and the polls
+        long drainEnd = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+        while (System.nanoTime() < drainEnd && (receiver.getEvents().getDepth() > 0 || receiver.getEvents().getActiveWorkers() > 0
+                || executor.getPending() > 0 || executor.getRunning() > 0)) {
+            Thread.sleep(1000);
+            samples.add(sample(start, receiver, executor));
+        }
+        long end = System.nanoTime();
+
+        double sendSeconds = (sentDone - start) / 1e9;
+        double totalSeconds = (end - start) / 1e9;
+        JSONObject statusCounts = new JSONObject();
+        for (Map.Entry<Integer, AtomicInteger> e : statuses.entrySet()) {
+            statusCounts.element(String.valueOf(e.getKey()), e.getValue().get());
+        }
+        JSONObject report = new JSONObject()
+                .element("configuration", new JSONObject()
+                        .element("jobs", JOBS)
+                        .element("repositories", REPOSITORIES)
+                        .element("rate", RATE)
+                        .element("duration", DURATION)
+                        .element("legacyRatio", LEGACY_RATIO))
+                .element("hooks", new JSONObject()
+                        .element("sent", sent.get())
+                        .element("failed", failed.get())
+                        .element("statuses", statusCounts)
+                        .element("sentPerSecond", sent.get() / sendSeconds)
+                        .element("processedPerSecond", BitbucketMetrics.get().getHooksReceived() / totalSeconds)
+                        .element("response", response.toJSON()))
+                .element("firstPushToQueue", FIRST_PUSH_TO_QUEUE.toJSON())
+                .element("jobsQueued", QUEUED.size())
+                .element("drainSeconds", (end - sentDone) / 1e9)
+                .element("samples", samples)
+                .element("metrics", BitbucketMetrics.get().toJSON(true));
+
+        File target = new File(System.getProperty("buildDirectory", "target"), "bitbucket-loadtest.json");
+        FileUtils.writeStringToFile(target, report.toString(2), "UTF-8");
+        JSONObject summary = new JSONObject()
+                .element("hooks", report.get("hooks"))
+                .element("firstPushToQueue", report.get("firstPushToQueue"))
+                .element("jobsQueued", QUEUED.size())
+                .element("drainSeconds", report.get("drainSeconds"));
+        LOGGER.log(Level.INFO, "BitBucket load test: {0}\nFull report in {1}",
+                new Object[]{summary.toString(2), target.getAbsolutePath()});
+
+        assertTrue("no hook was delivered", sent.get() > 0);
+    }
+
+    private JSONObject sample(long start, BitbucketHookReceiver receiver, BitbucketPollingExecutor executor) {
+        return new JSONObject()
+                .element("second", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start))
+                .element("hookQueue", receiver.getEvents().getDepth())
+                .element("pollsPending", executor.getPending())
+                .element("pollsRunning", executor.getRunning())
+                .element("buildQueue", jenkins.jenkins.getQueue().getItems().length);
+    }
+
+    /**
+     * Records how long after the first push to its repository a job enters the build queue. Builds don't start,
+     * so each job is only queued once.
+     */
+    @TestExtension("throughputAndLatency")
+    public static class QueueLatency extends QueueListener {
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem item) {
+            long now = System.nanoTime();
+            String job = item.task instanceof Job ? ((Job) item.task).getFullName() : null;
+            String repository = job != null ? REPOSITORY_OF_JOB.get(job) : null;
+            if (repository == null || QUEUED.put(job, Boolean.TRUE) != null) {
+                return;
+            }
+            ConcurrentSkipListSet<Long> pushes = PUSHES.get(repository);
+            Long first = pushes != null && !pushes.isEmpty() ? pushes.first() : null;
+            if (first != null) {
+                FIRST_PUSH_TO_QUEUE.record(now - first);
+            }
+        }
+    }
+
+    /**
+     * A local Git repository standing in for a BitBucket one, each push adding a commit.
+     */
+    private static final class Repository {
+        private final String url;
+        private final String name;
+        private final Git git;
+        private int pushes;
+
+        Repository(File dir) throws Exception {
+            this.url = dir.toURI().toString().replaceFirst("^file:/+", "file:///");
+            this.name = dir.getName();
+            this.git = Git.init().setDirectory(dir).call();
+            FileUtils.writeStringToFile(new File(dir, "README"), name, "UTF-8");
+            git.add().addFilepattern("README").call();
+            git.commit().setMessage("Initial commit").call();
+            PUSHES.put(url, new ConcurrentSkipListSet<Long>());
+        }
+
+        /**
+         * Commits, then notifies the hook of the commit.
+         *
+         * @return the HTTP status of the hook
+         */
+        int push(URL hook, boolean legacy, BitbucketMetrics.Histogram response) throws Exception {
+            String previous;
+            String hash;
+            synchronized (this) {
+                previous = git.getRepository().resolve("HEAD").name();
+                RevCommit commit = git.commit().setMessage("Push " + (++pushes)).call();
+                hash = commit.name();
+            }
+            HttpURLConnection connection = (HttpURLConnection) hook.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            byte[] body;
+            if (legacy) {
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                body = ("payload=" + URLEncoder.encode(post(hash), "UTF-8")).getBytes("UTF-8");
+            } else {
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setRequestProperty("User-Agent", "Bitbucket-Webhooks/2.0");
+                connection.setRequestProperty("X-Event-Key", "repo:push");
+                connection.setRequestProperty("X-Request-UUID", UUID.randomUUID().toString());
+                body = webhook(previous, hash).getBytes("UTF-8");
+            }
+            long start = System.nanoTime();
+            PUSHES.get(url).add(start);
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+            int status = connection.getResponseCode();
+            response.record(System.nanoTime() - start);
+            try {
+                IOUtils.toByteArray(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+            } catch (IOException e) {
+                // no body
+            }
+            return status;
+        }
+
+        private String webhook(String previous, String hash) {
+            JSONObject target = new JSONObject().element("hash", hash).element("message", "Push").element("type", "commit");
+            JSONObject change = new JSONObject()
+                    .element("forced", false)
+                    .element("created", false)
+                    .element("closed", false)
+                    .element("old", new JSONObject().element("type", "branch").element("name", "master")
+                            .element("target", new JSONObject().element("hash", previous)))
+                    .element("new", new JSONObject().element("type", "branch").element("name", "master")
+                            .element("target", target))
+                    .element("commits", new JSONArray().element(target));
+            return new JSONObject()
+                    .element("actor", new JSONObject().element("username", "loadtest").element("display_name", "Load Test"))
+                    .element("repository", new JSONObject()
+                            .element("name", name)
+                            .element("full_name", "loadtest/" + name)
+                            .element("scm", "git")
+                            .element("links", new JSONObject().element("html", new JSONObject().element("href", url))))
+                    .element("push", new JSONObject().element("changes", new JSONArray().element(change)))
+                    .toString();
+        }
+
+        private String post(String hash) {
+            JSONObject commit = new JSONObject()
+                    .element("author", "loadtest")
+                    .element("branch", "master")
+                    .element("files", new JSONArray().element(new JSONObject().element("file", "README").element("type", "modified")))
+                    .element("message", "Push")
+                    .element("node", hash.substring(0, 12))
+                    .element("raw_node", hash);
+            String path = url.substring("file://".length());
+            return new JSONObject()
+                    .element("canon_url", "file://")
+                    .element("user", "loadtest")
+                    .element("commits", new JSONArray().element(commit))
+                    .element("repository", new JSONObject()
+                            .element("absolute_url", path + "/")
+                            .element("name", name)
+                            .element("scm", "git")
+                            .element("slug", name))
+                    .toString();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketLoadTest.class.getName());
+}
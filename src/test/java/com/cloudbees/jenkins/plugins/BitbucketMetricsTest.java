@@ -0,0 +1,51 @@
+package com.cloudbees.jenkins.plugins;
+
+import hudson.security.FullControlOnceLoggedInAuthorizationStrategy;
+import net.sf.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BitbucketMetricsTest {
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void shouldOnlyNameRepositoriesAndJobsToAdministrators() throws Exception {
+        jenkins.jenkins.setSecurityRealm(jenkins.createDummySecurityRealm());
+        jenkins.jenkins.setAuthorizationStrategy(new FullControlOnceLoggedInAuthorizationStrategy());
+
+        JSONObject anonymous = metrics(jenkins.createWebClient());
+        assertTrue(anonymous.getJSONObject("pollingExecutor").has("pending"));
+        assertFalse(anonymous.getJSONObject("pollingExecutor").has("pendingByRepository"));
+        assertFalse(anonymous.getJSONObject("polling").has("queueWaitByRepository"));
+        assertTrue(anonymous.getJSONObject("trigger").has("stages"));
+        assertFalse(anonymous.getJSONObject("trigger").has("byJob"));
+
+        JSONObject admin = metrics(jenkins.createWebClient().login("admin"));
+        assertTrue(admin.getJSONObject("pollingExecutor").has("pendingByRepository"));
+        assertTrue(admin.getJSONObject("polling").has("queueWaitByRepository"));
+        assertTrue(admin.getJSONObject("trigger").has("byJob"));
+    }
+
+    @Test
+    public void shouldNotNameRepositoriesAndJobsOverJmx() {
+        BitbucketMetrics.get().recordTrigger("secret-job", Collections.singletonMap(BitBucketTriggerTimings.TOTAL, 1000L));
+
+        JSONObject json = JSONObject.fromObject(BitbucketMetrics.get().getJson());
+        assertTrue(json.getJSONObject("trigger").has("stages"));
+        assertFalse(json.getJSONObject("trigger").has("byJob"));
+        assertFalse(json.getJSONObject("polling").has("queueWaitByRepository"));
+        assertFalse(json.toString().contains("secret-job"));
+    }
+
+    private static JSONObject metrics(JenkinsRule.WebClient webClient) throws Exception {
+        return JSONObject.fromObject(webClient.goTo("bitbucket-hook/metrics", "application/json")
+                .getWebResponse().getContentAsString());
+    }
+}
@@ -0,0 +1,73 @@
+package com.cloudbees.jenkins.plugins;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BitbucketPathFilterTest {
+
+    @Test
+    public void emptyFilterMatchesEverything() {
+        BitbucketPathFilter filter = new BitbucketPathFilter(null, " \n ");
+
+        assertTrue(filter.isEmpty());
+        assertTrue(filter.matchesAny(Collections.<String>emptyList()));
+        assertTrue(filter.matchesAny(Arrays.asList("anything")));
+    }
+
+    @Test
+    public void unknownPathsMatch() {
+        assertTrue(new BitbucketPathFilter("services/api/**", null).matchesAny(null));
+    }
+
+    @Test
+    public void antPatterns() {
+        BitbucketPathFilter filter = new BitbucketPathFilter("services/api/**\n*.xml, docs/\nsrc/?.c", null);
+
+        assertTrue(filter.matches("services/api/Main.java"));
+        assertTrue(filter.matches("services/api/deep/down/Main.java"));
+        assertFalse(filter.matches("services/web/Main.java"));
+        assertTrue(filter.matches("pom.xml"));
+        assertFalse(filter.matches("module/pom.xml"));
+        assertTrue(filter.matches("docs/index.md"));
+        assertTrue(filter.matches("src/a.c"));
+        assertFalse(filter.matches("src/ab.c"));
+    }
+
+    @Test
+    public void leadingDoubleStarMatchesRoot() {
+        BitbucketPathFilter filter = new BitbucketPathFilter("**/*.md", null);
+
+        assertTrue(filter.matches("README.md"));
+        assertTrue(filter.matches("docs/guide.md"));
+        assertFalse(filter.matches("README.mdx"));
+    }
+
+    @Test
+    public void regexCharactersAreLiteral() {
+        BitbucketPathFilter filter = new BitbucketPathFilter("lib/(v1)+.jar", null);
+
+        assertTrue(filter.matches("lib/(v1)+.jar"));
+        assertFalse(filter.matches("lib/v1v1.jar"));
+    }
+
+    @Test
+    public void excludesWin() {
+        BitbucketPathFilter filter = new BitbucketPathFilter("services/**", "**/*.md");
+
+        assertTrue(filter.matchesAny(Arrays.asList("services/README.md", "services/Main.java")));
+        assertFalse(filter.matchesAny(Arrays.asList("services/README.md", "web/Main.java")));
+    }
+
+    @Test
+    public void excludesOnly() {
+        BitbucketPathFilter filter = new BitbucketPathFilter(null, "docs/");
+
+        assertFalse(filter.matchesAny(Arrays.asList("docs/a.md", "docs/b/c.png")));
+        assertTrue(filter.matchesAny(Arrays.asList("docs/a.md", "pom.xml")));
+    }
+}
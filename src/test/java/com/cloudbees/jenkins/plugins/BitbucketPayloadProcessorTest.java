@@ -1,15 +1,26 @@
 package com.cloudbees.jenkins.plugins;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import javax.servlet.http.HttpServletRequest;
 
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
 import net.sf.json.JSONObject;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
@@ -51,13 +62,104 @@ public class BitbucketPayloadProcessorTest {
                 .element("html", new JSONObject()
                     .element("href", url)));
 
+        ArgumentCaptor<BitbucketEvent> event = ArgumentCaptor.forClass(BitbucketEvent.class);
+
         payloadProcessor.processPayload(payload, request);
 
-        verify(probe).triggerMatchingJobs(user, url, "git", payload.toString());
+        verify(probe).triggerMatchingJobs(event.capture());
+        assertEvent(event.getValue(), user, url, "git", payload.toString());
 
         payloadProcessor.processPayload(hgLoad, request);
 
-        verify(probe).triggerMatchingJobs(user, url, "hg", hgLoad.toString());
+        verify(probe, times(2)).triggerMatchingJobs(event.capture());
+        assertEvent(event.getValue(), user, url, "hg", hgLoad.toString());
+    }
+
+    @Test
+    public void testProcessWebhookPayloadChanges() {
+        when(request.getHeader("user-agent")).thenReturn("Bitbucket-Webhooks/2.0");
+        when(request.getHeader("x-event-key")).thenReturn("repo:push");
+
+        JSONObject payload = new JSONObject()
+            .element("actor", new JSONObject()
+                .element("username", "test_user"))
+            .element("repository", new JSONObject()
+                .element("links", new JSONObject()
+                    .element("html", new JSONObject()
+                        .element("href", "https://bitbucket.org/test_user/test_repo"))))
+            .element("push", new JSONObject()
+                .element("changes", new JSONArray()
+                    .element(new JSONObject()
+                        .element("new", new JSONObject()
+                            .element("type", "branch")
+                            .element("name", "master")
+                            .element("target", new JSONObject()
+                                .element("hash", "620ade18607ac42d872b568bb92acaa9a28620e9"))))
+                    .element(new JSONObject()
+                        .element("new", JSONNull.getInstance())
+                        .element("old", new JSONObject()
+                            .element("type", "tag")
+                            .element("name", "v1.0")))));
+
+        payloadProcessor.processPayload(payload, request);
+
+        ArgumentCaptor<BitbucketEvent> event = ArgumentCaptor.forClass(BitbucketEvent.class);
+        verify(probe).triggerMatchingJobs(event.capture());
+        List<BitbucketRefChange> changes = event.getValue().getChanges();
+        assertEquals(2, changes.size());
+        assertEquals("branch", changes.get(0).getType());
+        assertEquals("master", changes.get(0).getName());
+        assertEquals("620ade18607ac42d872b568bb92acaa9a28620e9", changes.get(0).getNewHash());
+        assertEquals("tag", changes.get(1).getType());
+        assertEquals("v1.0", changes.get(1).getName());
+        assertNull(changes.get(1).getNewHash());
+    }
+
+    @Test
+    public void testProcessPullRequestPayload() {
+        when(request.getHeader("user-agent")).thenReturn("Bitbucket-Webhooks/2.0");
+        when(request.getHeader("x-event-key")).thenReturn("pullrequest:fulfilled");
+
+        JSONObject payload = new JSONObject()
+            .element("actor", new JSONObject()
+                .element("username", "test_user"))
+            .element("repository", new JSONObject()
+                .element("links", new JSONObject()
+                    .element("html", new JSONObject()
+                        .element("href", "https://bitbucket.org/test_user/test_repo"))))
+            .element("pullrequest", new JSONObject()
+                .element("id", 42)
+                .element("title", "Add feature")
+                .element("source", new JSONObject()
+                    .element("repository", new JSONObject().element("full_name", "test_user/test_repo"))
+                    .element("branch", new JSONObject().element("name", "feature"))
+                    .element("commit", new JSONObject().element("hash", "d3adb33f")))
+                .element("destination", new JSONObject()
+                    .element("repository", new JSONObject().element("full_name", "test_user/test_repo"))
+                    .element("branch", new JSONObject().element("name", "master"))
+                    .element("commit", new JSONObject().element("hash", "c0ffee00")))
+                .element("merge_commit", new JSONObject().element("hash", "620ade18")));
+
+        payloadProcessor.processPayload(payload, request);
+
+        ArgumentCaptor<BitbucketEvent> event = ArgumentCaptor.forClass(BitbucketEvent.class);
+        verify(probe).triggerMatchingJobs(event.capture());
+        assertEvent(event.getValue(), "test_user", "https://bitbucket.org/test_user/test_repo", "git", payload.toString());
+        BitbucketPullRequest pullRequest = event.getValue().getPullRequest();
+        assertEquals("42", pullRequest.getId());
+        assertEquals("feature", pullRequest.getSourceBranch());
+        assertEquals("d3adb33f", pullRequest.getSourceCommit());
+        assertEquals("master", pullRequest.getDestinationBranch());
+        assertEquals("620ade18", pullRequest.getCommitToBuild());
+        assertTrue(event.getValue().getChanges().isEmpty());
+    }
+
+    @Test
+    public void testPullRequestFromForkIsNotPinned() {
+        BitbucketPullRequest pullRequest = new BitbucketPullRequest(BitbucketPullRequest.UPDATED, "7", null, null,
+            "fork_user/test_repo", "feature", "d3adb33f", "test_user/test_repo", "master", "c0ffee00", null);
+
+        assertNull(pullRequest.getCommitToBuild());
     }
 
     @Test
@@ -74,7 +176,66 @@ public class BitbucketPayloadProcessorTest {
 
         payloadProcessor.processPayload(payload, request);
 
-        verify(probe).triggerMatchingJobs("old_user", "https://staging.bitbucket.org/old_user/old_repo", "git", payload.toString());
+        ArgumentCaptor<BitbucketEvent> event = ArgumentCaptor.forClass(BitbucketEvent.class);
+        verify(probe).triggerMatchingJobs(event.capture());
+        assertEvent(event.getValue(), "old_user", "https://staging.bitbucket.org/old_user/old_repo", "git", payload.toString());
+    }
+
+    @Test
+    public void testProcessPostServicePayloadBranches() {
+        when(request.getHeader("user-agent")).thenReturn(null);
+
+        JSONObject payload = new JSONObject()
+            .element("canon_url", "https://staging.bitbucket.org")
+            .element("user", "old_user")
+            .element("repository", new JSONObject()
+                .element("scm", "git")
+                .element("absolute_url", "/old_user/old_repo"))
+            .element("commits", new JSONArray()
+                .element(new JSONObject().element("branch", "master"))
+                .element(new JSONObject().element("branch", "feature/x"))
+                .element(new JSONObject().element("branch", "master")));
+
+        payloadProcessor.processPayload(payload, request);
+
+        ArgumentCaptor<BitbucketEvent> event = ArgumentCaptor.forClass(BitbucketEvent.class);
+        verify(probe).triggerMatchingJobs(event.capture());
+        List<BitbucketRefChange> changes = event.getValue().getChanges();
+        assertEquals(2, changes.size());
+        assertEquals("master", changes.get(0).getName());
+        assertEquals("feature/x", changes.get(1).getName());
+        assertNull(event.getValue().getChangedPaths());
+    }
+
+    @Test
+    public void testProcessPostServicePayloadFiles() {
+        when(request.getHeader("user-agent")).thenReturn(null);
+
+        JSONObject payload = new JSONObject()
+            .element("canon_url", "https://staging.bitbucket.org")
+            .element("user", "old_user")
+            .element("repository", new JSONObject()
+                .element("scm", "git")
+                .element("absolute_url", "/old_user/old_repo"))
+            .element("commits", new JSONArray()
+                .element(new JSONObject().element("branch", "master").element("files", new JSONArray()
+                    .element(new JSONObject().element("file", "src/Main.java").element("type", "modified"))
+                    .element(new JSONObject().element("file", "README.md").element("type", "added"))))
+                .element(new JSONObject().element("branch", "master").element("files", new JSONArray()
+                    .element(new JSONObject().element("file", "src/Main.java").element("type", "modified")))));
+
+        payloadProcessor.processPayload(payload, request);
+
+        ArgumentCaptor<BitbucketEvent> event = ArgumentCaptor.forClass(BitbucketEvent.class);
+        verify(probe).triggerMatchingJobs(event.capture());
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("src/Main.java", "README.md")), event.getValue().getChangedPaths());
+    }
+
+    private static void assertEvent(BitbucketEvent event, String user, String url, String scm, String payload) {
+        assertEquals(user, event.getUser());
+        assertEquals(url, event.getUrl());
+        assertEquals(scm, event.getScm());
+        assertEquals(payload, event.getPayload());
     }
 
 }
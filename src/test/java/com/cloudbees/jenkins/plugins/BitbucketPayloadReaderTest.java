@@ -0,0 +1,100 @@
+package com.cloudbees.jenkins.plugins;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BitbucketPayloadReaderTest {
+
+    @Test
+    public void shouldKeepOnlyProcessedFields() throws Exception {
+        String body = "{\"actor\": {\"username\": \"test_\\\"user\", \"display_name\": \"Test\"},"
+                + " \"repository\": {\"name\": \"test_repo\", \"scm\": \"git\","
+                + "   \"links\": {\"html\": {\"href\": \"https://bitbucket.org/test_user/test_repo\"}, \"avatar\": {\"href\": \"x\"}}},"
+                + " \"push\": {\"changes\": [{\"new\": {\"type\": \"branch\", \"name\": \"master\","
+                + "   \"target\": {\"hash\": \"620ade18607ac42d872b568bb92acaa9a28620e9\", \"message\": \"a ]} message\"}},"
+                + "   \"old\": null, \"commits\": [{\"hash\": \"620ade1\"}], \"truncated\": false}]}}";
+
+        JSONObject payload = BitbucketPayloadReader.read(new StringReader(body));
+
+        assertEquals("test_\"user", payload.getJSONObject("actor").getString("username"));
+        assertFalse(payload.getJSONObject("actor").has("display_name"));
+        JSONObject repository = payload.getJSONObject("repository");
+        assertFalse(repository.has("name"));
+        assertEquals("git", repository.getString("scm"));
+        assertEquals("https://bitbucket.org/test_user/test_repo", repository.getJSONObject("links").getJSONObject("html").getString("href"));
+        assertFalse(repository.getJSONObject("links").has("avatar"));
+        JSONObject change = payload.getJSONObject("push").getJSONArray("changes").getJSONObject(0);
+        assertEquals("620ade18607ac42d872b568bb92acaa9a28620e9", change.getJSONObject("new").getJSONObject("target").getString("hash"));
+        assertFalse(change.getJSONObject("new").getJSONObject("target").has("message"));
+        assertFalse(change.has("commits"));
+    }
+
+    @Test
+    public void shouldReadPostServiceBranches() throws Exception {
+        String body = "{\"canon_url\": \"https://bitbucket.org\", \"user\": \"marcus\","
+                + " \"commits\": [{\"branch\": \"master\", \"files\": [{\"file\": \"somefile.py\"}], \"size\": -1}],"
+                + " \"repository\": {\"absolute_url\": \"/marcus/project-x/\", \"fork\": false, \"scm\": \"git\"}}";
+
+        JSONObject payload = BitbucketPayloadReader.read(new StringReader(body));
+
+        assertEquals("marcus", payload.getString("user"));
+        assertEquals("master", payload.getJSONArray("commits").getJSONObject(0).getString("branch"));
+        assertFalse(payload.getJSONArray("commits").getJSONObject(0).has("files"));
+        assertTrue(payload.getJSONObject("repository").has("absolute_url"));
+    }
+
+    @Test
+    public void shouldReadEnvelopeInOnePass() throws Exception {
+        StringBuilder commits = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            commits.append(i == 0 ? "" : ", ").append("{\"hash\": \"").append(i).append("\"}");
+        }
+        String body = "{\"actor\": {\"username\": \"test_user\"}, \"commits\": [" + commits + "]}";
+
+        BitbucketPayloadReader.Envelope envelope = BitbucketPayloadReader.readEnvelope(new StringReader(
+                "{\"headers\": {\"user-agent\": \"Bitbucket-Webhooks/2.0\"}, \"body\": " + body + "}"));
+
+        assertEquals("Bitbucket-Webhooks/2.0", envelope.getHeader("User-Agent"));
+        assertEquals(body, envelope.getRawPayload());
+        assertEquals("test_user", envelope.getPayload().getJSONObject("actor").getString("username"));
+        assertFalse(envelope.getPayload().has("commits"));
+    }
+
+    @Test
+    public void shouldKeepStringsLookingLikeJson() throws Exception {
+        String body = "{\"pullrequest\": {\"title\": \"[WIP] fix [x]\","
+                + " \"source\": {\"branch\": {\"name\": \"null\"}},"
+                + " \"destination\": {\"branch\": {\"name\": \"{main}\"}},"
+                + " \"links\": {\"html\": {\"href\": \"\\\"quoted\\\"\"}}},"
+                + " \"commits\": [{\"files\": [{\"file\": \"[a]\"}]}]}";
+
+        JSONObject payload = BitbucketPayloadReader.read(new StringReader(body));
+        JSONObject parsed = JSONObject.fromObject(body);
+
+        JSONObject pullRequest = payload.getJSONObject("pullrequest");
+        assertTrue(pullRequest.get("title") instanceof String);
+        assertEquals("[WIP] fix [x]", pullRequest.getString("title"));
+        assertTrue(pullRequest.getJSONObject("source").getJSONObject("branch").get("name") instanceof String);
+        assertEquals(parsed.getJSONObject("pullrequest").getJSONObject("source").getJSONObject("branch").getString("name"),
+                pullRequest.getJSONObject("source").getJSONObject("branch").getString("name"));
+        assertTrue(pullRequest.getJSONObject("destination").getJSONObject("branch").get("name") instanceof String);
+        assertEquals(parsed.getJSONObject("pullrequest").getJSONObject("destination").getJSONObject("branch").getString("name"),
+                pullRequest.getJSONObject("destination").getJSONObject("branch").getString("name"));
+        assertEquals(parsed.getJSONObject("pullrequest").getJSONObject("links").getJSONObject("html").getString("href"),
+                pullRequest.getJSONObject("links").getJSONObject("html").getString("href"));
+        assertEquals(parsed.getString("pullrequest"), pullRequest.toString());
+        assertEquals(parsed.getString("commits"), payload.getString("commits"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void shouldRejectTruncatedPayload() throws Exception {
+        BitbucketPayloadReader.read(new StringReader("{\"actor\": {\"username\": \"test"));
+    }
+}
@@ -0,0 +1,125 @@
+package com.cloudbees.jenkins.plugins;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BitbucketPollingExecutorTest {
+
+    @Test
+    public void shouldNeverOverlapPollsOfTheSameJob() throws Exception {
+        BitbucketPollingExecutor executor = new BitbucketPollingExecutor(4, 0);
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            executor.submit("job", "bitbucket.org", new Poll(concurrent, maxConcurrent, done));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, maxConcurrent.get());
+    }
+
+    @Test
+    public void shouldPollDifferentJobsInParallelUpToTheHostCap() throws Exception {
+        BitbucketPollingExecutor executor = new BitbucketPollingExecutor(8, 2);
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            executor.submit("job" + i, "bitbucket.org", new Poll(concurrent, maxConcurrent, done));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, maxConcurrent.get());
+    }
+
+    @Test
+    public void shouldServeRepositoriesInTurn() throws Exception {
+        BitbucketPollingExecutor executor = new BitbucketPollingExecutor(1, 0);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.submit("blocker", null, "other", false, new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(6);
+        for (int i = 0; i < 4; i++) {
+            executor.submit("noisy" + i, null, "noisy", false, new Record(order, "noisy", done));
+        }
+        executor.submit("quiet0", null, "quiet", false, new Record(order, "quiet", done));
+        executor.submit("priority0", null, "noisy", true, new Record(order, "priority", done));
+        assertEquals(Integer.valueOf(5), executor.getPendingByRepository().get("noisy"));
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("priority", "noisy", "quiet", "noisy", "noisy", "noisy"), order);
+    }
+
+    @Test
+    public void shouldCapPollsPerRepository() throws Exception {
+        BitbucketPollingExecutor executor = new BitbucketPollingExecutor(8, 0, 2);
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            executor.submit("job" + i, "bitbucket.org", "owner/repo", false, new Poll(concurrent, maxConcurrent, done));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, maxConcurrent.get());
+    }
+
+    private static class Record implements Runnable {
+        private final List<String> order;
+        private final String name;
+        private final CountDownLatch done;
+
+        Record(List<String> order, String name, CountDownLatch done) {
+            this.order = order;
+            this.name = name;
+            this.done = done;
+        }
+
+        public void run() {
+            order.add(name);
+            done.countDown();
+        }
+    }
+
+    private static class Poll implements Runnable {
+        private final AtomicInteger concurrent;
+        private final AtomicInteger maxConcurrent;
+        private final CountDownLatch done;
+
+        Poll(AtomicInteger concurrent, AtomicInteger maxConcurrent, CountDownLatch done) {
+            this.concurrent = concurrent;
+            this.maxConcurrent = maxConcurrent;
+            this.done = done;
+        }
+
+        public void run() {
+            int current = concurrent.incrementAndGet();
+            synchronized (maxConcurrent) {
+                maxConcurrent.set(Math.max(maxConcurrent.get(), current));
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            concurrent.decrementAndGet();
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.cloudbees.jenkins.plugins;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BitbucketRemoteHeadsTest {
+
+    private static final String MASTER = "1111111111111111111111111111111111111111";
+    private static final String RELEASE = "2222222222222222222222222222222222222222";
+
+    @Test
+    public void reusedForTheSameEvent() throws Exception {
+        BitbucketRemoteHeads.Lookup lookup = lookup();
+
+        assertTrue(lookup.isValidFor("event-1", Collections.<BitbucketRefChange>emptyList()));
+    }
+
+    @Test
+    public void reusedForAnotherEventAgreeingWithTheHeads() throws Exception {
+        BitbucketRemoteHeads.Lookup lookup = lookup();
+
+        assertTrue(lookup.isValidFor("event-2", Arrays.asList(
+                new BitbucketRefChange(BitbucketRefChange.BRANCH, "master", MASTER),
+                new BitbucketRefChange(BitbucketRefChange.TAG, "v1.0", RELEASE))));
+        assertFalse(lookup.isValidFor("event-2", Collections.singletonList(
+                new BitbucketRefChange(BitbucketRefChange.BRANCH, "master", RELEASE))));
+    }
+
+    @Test
+    public void tagsAreNotComparedWithBranches() throws Exception {
+        BitbucketRemoteHeads.Lookup lookup = lookup();
+
+        assertFalse(lookup.isValidFor("event-2", Collections.singletonList(
+                new BitbucketRefChange(BitbucketRefChange.TAG, "master", MASTER))));
+    }
+
+    @Test
+    public void notReusedForAnotherEventWithoutKnownHashes() throws Exception {
+        BitbucketRemoteHeads.Lookup lookup = lookup();
+
+        assertFalse(lookup.isValidFor("event-2", Collections.<BitbucketRefChange>emptyList()));
+        assertFalse(lookup.isValidFor("event-2", Arrays.asList(
+                new BitbucketRefChange(BitbucketRefChange.BRANCH, "master", MASTER),
+                new BitbucketRefChange(BitbucketRefChange.BRANCH, "deleted", null))));
+    }
+
+    private static BitbucketRemoteHeads.Lookup lookup() {
+        final Map<String, ObjectId> heads = new HashMap<String, ObjectId>();
+        heads.put("refs/heads/master", ObjectId.fromString(MASTER));
+        heads.put("refs/tags/v1.0", ObjectId.fromString(RELEASE));
+        BitbucketRemoteHeads.Lookup lookup = new BitbucketRemoteHeads.Lookup("event-1",
+                new Callable<Map<String, ObjectId>>() {
+                    public Map<String, ObjectId> call() {
+                        return heads;
+                    }
+                });
+        lookup.heads.run();
+        return lookup;
+    }
+}
@@ -3,6 +3,8 @@ package com.cloudbees.jenkins.plugins;
 import com.gargoylesoftware.htmlunit.HttpMethod;
 import com.gargoylesoftware.htmlunit.WebRequestSettings;
 import com.gargoylesoftware.htmlunit.WebResponse;
+import hudson.security.FullControlOnceLoggedInAuthorizationStrategy;
+import hudson.security.csrf.DefaultCrumbIssuer;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -26,4 +28,18 @@ public class CrumbExclusionTest {
 
         assertEquals(resp.getStatusCode(), 200);
     }
+
+    @Test
+    public void shouldRequireACrumbForTheBatchUrl() throws Exception {
+        jenkins.jenkins.setSecurityRealm(jenkins.createDummySecurityRealm());
+        jenkins.jenkins.setAuthorizationStrategy(new FullControlOnceLoggedInAuthorizationStrategy());
+        jenkins.jenkins.setCrumbIssuer(new DefaultCrumbIssuer(false));
+        JenkinsRule.WebClient webClient = jenkins.createWebClient().login("admin");
+        webClient.setThrowExceptionOnFailingStatusCode(false);
+        WebRequestSettings wrs = new WebRequestSettings(new URL(webClient.getContextPath() + "bitbucket-hook/batch"),
+                HttpMethod.POST);
+        WebResponse resp = webClient.getPage(wrs).getWebResponse();
+
+        assertEquals(403, resp.getStatusCode());
+    }
 }